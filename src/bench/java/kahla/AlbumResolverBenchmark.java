@@ -0,0 +1,71 @@
+package kahla;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Working out which digiKam album a folder is: loading AlbumRoots and Albums up front, and then
+ * resolving a folder path against them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AlbumResolverBenchmark {
+  @Param({"small", "medium", "large"})
+  public BenchCorpus.Size size;
+
+  private BenchCorpus corpus;
+  private Connection conn;
+  private AlbumResolver resolver;
+  private String[] dirs;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, SQLException {
+    corpus = new BenchCorpus(size);
+    conn = corpus.connect();
+    resolver = new AlbumResolver(conn);
+    // Windows-style paths, trailing slash and all, like the CLI hands over.
+    dirs = new String[size.folders];
+    for (int a = 0; a < size.folders; a++) {
+      dirs[a] = "C:" + corpus.rootPath + BenchCorpus.folderPath(a) + "/";
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, SQLException {
+    conn.close();
+    corpus.delete();
+  }
+
+  @Benchmark
+  public int resolve() {
+    next = (next + 1) % dirs.length;
+    return resolver.resolve(dirs[next]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public AlbumResolver load() throws SQLException {
+    return new AlbumResolver(conn);
+  }
+}
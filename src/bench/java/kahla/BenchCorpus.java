@@ -0,0 +1,165 @@
+package kahla;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generated test data for the benchmarks: a digikam4.db with the tables Kahla reads and writes,
+ * filled in at one of a few sizes, and .picasa.ini files shaped like the ones Picasa leaves behind.
+ * Everything comes from a fixed seed, so every run measures the same data.
+ */
+public class BenchCorpus {
+  /**
+   * How big a library to generate.
+   */
+  public enum Size {
+    small(10, 100, 100),
+    medium(100, 500, 1_000),
+    large(1_000, 1_000, 10_000);
+
+    final int folders;
+    final int imagesPerFolder;
+    final int tags;
+
+    Size(int folders, int imagesPerFolder, int tags) {
+      this.folders = folders;
+      this.imagesPerFolder = imagesPerFolder;
+      this.tags = tags;
+    }
+  }
+
+  final File dir;
+  final String rootPath;
+  final Size size;
+
+  /**
+   * Creates a temporary directory holding a digikam4.db of the given size. Nothing is written
+   * for the folders themselves; the album root just points at the temporary directory.
+   */
+  BenchCorpus(Size size) throws IOException, SQLException {
+    this.size = size;
+    this.dir = Files.createTempDirectory("kahla-bench").toFile();
+    this.rootPath = dir.getPath().replace('\\', '/');
+    try (Connection conn = connect()) {
+      conn.setAutoCommit(false);
+      try (Statement st = conn.createStatement()) {
+        for (String ddl : CorpusGenerator.SCHEMA) {
+          st.execute(ddl);
+        }
+      }
+      try (PreparedStatement root = conn.prepareStatement(
+              "INSERT INTO AlbumRoots (id, label, status, type, identifier, specificPath) VALUES (1, 'bench', 0, 1, 'bench', ?)");
+           PreparedStatement album = conn.prepareStatement(
+                   "INSERT INTO Albums (id, albumRoot, relativePath) VALUES (?, 1, ?)");
+           PreparedStatement image = conn.prepareStatement(
+                   "INSERT INTO Images (album, name, status, category) VALUES (?, ?, 1, 1)");
+           PreparedStatement tag = conn.prepareStatement("INSERT INTO Tags (pid, name) VALUES (0, ?)")) {
+        root.setString(1, rootPath);
+        root.executeUpdate();
+        for (int a = 0; a < size.folders; a++) {
+          album.setInt(1, a + 1);
+          album.setString(2, folderPath(a));
+          album.addBatch();
+          for (int i = 0; i < size.imagesPerFolder; i++) {
+            image.setInt(1, a + 1);
+            image.setString(2, imageName(i));
+            image.addBatch();
+          }
+          image.executeBatch();
+        }
+        album.executeBatch();
+        for (int t = 0; t < size.tags; t++) {
+          tag.setString(1, tagName(t));
+          tag.addBatch();
+        }
+        tag.executeBatch();
+      }
+      conn.commit();
+    }
+  }
+
+  Connection connect() throws SQLException {
+    return DriverManager.getConnection("jdbc:sqlite:" + rootPath + "/digikam4.db");
+  }
+
+  /**
+   * @return the relative path digiKam stores for folder number `a`
+   */
+  static String folderPath(int a) {
+    return String.format("/folder%04d", a);
+  }
+
+  static String imageName(int i) {
+    return "IMG_" + i + ".png";
+  }
+
+  static String tagName(int t) {
+    return "keyword " + t;
+  }
+
+  /**
+   * Deletes the temporary directory and everything in it.
+   */
+  void delete() throws IOException {
+    try (Stream<java.nio.file.Path> files = Files.walk(dir.toPath())) {
+      files.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+    }
+  }
+
+  /**
+   * Writes an ini file shaped like the ones Picasa leaves behind: album definitions at the top,
+   * one section per image with keywords and sometimes albums/faces, and [Contacts2] at the end.
+   */
+  static void writeIni(File f, int images, int keywordCount) throws IOException {
+    Random random = new Random(42);
+    String[] albums = new String[20];
+    String[] people = new String[50];
+    for (int i = 0; i < albums.length; i++) {
+      albums[i] = String.format("%032x", random.nextLong() & Long.MAX_VALUE);
+    }
+    for (int i = 0; i < people.length; i++) {
+      people[i] = String.format("%016x", random.nextLong() & Long.MAX_VALUE);
+    }
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(f.toPath(), Charset.defaultCharset()))) {
+      for (int i = 0; i < albums.length; i++) {
+        out.println("[.album:" + albums[i] + "]");
+        out.println("name=album " + i);
+        out.println("token=" + albums[i]);
+        out.println("date=2022-08-23T13:44:49-07:00");
+      }
+      for (int i = 0; i < images; i++) {
+        out.println("[" + imageName(i) + "]");
+        out.println("rotate=rotate(0)");
+        StringBuilder line = new StringBuilder("keywords=");
+        int count = 1 + random.nextInt(6);
+        for (int k = 0; k < count; k++) {
+          line.append(k == 0 ? "" : ",").append(tagName(random.nextInt(keywordCount)));
+        }
+        out.println(line);
+        if (random.nextInt(3) == 0) {
+          out.println("albums=" + albums[random.nextInt(albums.length)]);
+        }
+        if (random.nextInt(4) == 0) {
+          out.println("faces=rect64(1c863ab430a462a5)," + people[random.nextInt(people.length)]
+                  + ";rect64(44633848593c6170)," + people[random.nextInt(people.length)]);
+        }
+        out.println("backuphash=" + random.nextInt(65536));
+      }
+      out.println("[Contacts2]");
+      for (int i = 0; i < people.length; i++) {
+        out.println(people[i] + "=person " + i + ";;");
+      }
+    }
+  }
+}
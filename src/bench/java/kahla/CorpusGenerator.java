@@ -0,0 +1,386 @@
+package kahla;
+
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds a fake Picasa library for scale testing: a tree of folders that each hold a .picasa.ini,
+ * and a digikam4.db that knows about all of them. No actual image files get written (Kahla never
+ * opens them), which is most of why a million images only takes a few seconds.
+ *
+ * Keywords are drawn from a Zipf distribution, so a handful of tags show up everywhere and most
+ * show up rarely, like in a real library. Everything comes from the seed, so the same options
+ * always give the same corpus.
+ *
+ * Run it with:
+ *   mvn -P benchmark test-compile exec:java -Dexec.mainClass=kahla.CorpusGenerator
+ *       -Dexec.classpathScope=test -Dexec.args="-o /tmp/corpus --folders 1000 --images 1000"
+ */
+@CommandLine.Command(name = "kahlaCorpus", mixinStandardHelpOptions = true, version = "0.1",
+        description = "Generates a synthetic Picasa/DigiKam library to run Kahla against.")
+public class CorpusGenerator implements Runnable {
+  // The parts of digiKam's schema Kahla touches.
+  static final String[] SCHEMA = {
+          "CREATE TABLE AlbumRoots (id INTEGER PRIMARY KEY, label TEXT, status INTEGER NOT NULL, "
+                  + "type INTEGER NOT NULL, identifier TEXT, specificPath TEXT, UNIQUE(identifier, specificPath))",
+          "CREATE TABLE Albums (id INTEGER PRIMARY KEY, albumRoot INTEGER NOT NULL, relativePath TEXT NOT NULL, "
+                  + "date DATE, caption TEXT, collection TEXT, icon INTEGER, UNIQUE(albumRoot, relativePath))",
+          "CREATE TABLE Images (id INTEGER PRIMARY KEY, album INTEGER, name TEXT NOT NULL, status INTEGER NOT NULL, "
+                  + "category INTEGER NOT NULL, modificationDate DATETIME, fileSize INTEGER, uniqueHash TEXT, "
+                  + "manualOrder INTEGER, UNIQUE (album, name))",
+          "CREATE TABLE ImageInformation (imageid INTEGER PRIMARY KEY, rating INTEGER, creationDate DATETIME, "
+                  + "digitizationDate DATETIME, orientation INTEGER, width INTEGER, height INTEGER, format TEXT, "
+                  + "colorDepth INTEGER, colorModel INTEGER)",
+          "CREATE TABLE Tags (id INTEGER PRIMARY KEY, pid INTEGER, name TEXT NOT NULL, icon INTEGER, "
+                  + "iconkde TEXT, UNIQUE (name, pid))",
+          "CREATE TABLE ImageTags (imageid INTEGER NOT NULL, tagid INTEGER NOT NULL, UNIQUE (imageid, tagid))",
+          "CREATE INDEX tag_index ON ImageTags (tagid)",
+          "CREATE INDEX tag_id_index ON ImageTags (imageid)",
+          "CREATE TABLE ImageTagProperties (imageid INTEGER, tagid INTEGER, property TEXT, value TEXT)",
+  };
+
+  private static final String INI_NAME = ".picasa.ini";
+  private static final int[][] IMAGE_SIZES = {{4032, 3024}, {3024, 4032}, {1920, 1080}, {1280, 720}, {800, 600}};
+
+  @CommandLine.Option(names = {"-o", "--out"}, required = true,
+          description = "Where to put the library. Must not exist yet, or be empty.")
+  private File out;
+
+  @CommandLine.Option(names = {"--seed"}, defaultValue = "42",
+          description = "Seed for everything random. Same seed and options, same corpus.")
+  private long seed;
+
+  @CommandLine.Option(names = {"--folders"}, defaultValue = "100",
+          description = "How many folders (DigiKam albums) to generate, the root included.")
+  private int folders;
+
+  @CommandLine.Option(names = {"--fanout"}, defaultValue = "10",
+          description = "How many subfolders each folder gets before the tree goes a level deeper.")
+  private int fanout;
+
+  @CommandLine.Option(names = {"--images"}, defaultValue = "100",
+          description = "How many images per folder.")
+  private int imagesPerFolder;
+
+  @CommandLine.Option(names = {"--keywords"}, defaultValue = "4",
+          description = "Most keywords any one image gets. Each image gets between 1 and this many.")
+  private int keywordsPerImage;
+
+  @CommandLine.Option(names = {"--vocabulary"}, defaultValue = "10000",
+          description = "How many distinct keywords there are to draw from.")
+  private int vocabulary;
+
+  @CommandLine.Option(names = {"--zipf"}, defaultValue = "1.0",
+          description = "Zipf exponent for how often keywords get reused. 0 picks them uniformly.")
+  private double zipf;
+
+  @CommandLine.Option(names = {"--known-tags"}, defaultValue = "0.5",
+          description = "Fraction of the keywords that DigiKam already has in Tags.")
+  private double knownTags;
+
+  @CommandLine.Option(names = {"--albums"}, defaultValue = "0",
+          description = "How many Picasa albums there are. 0 means no album tokens at all.")
+  private int albums;
+
+  @CommandLine.Option(names = {"--album-rate"}, defaultValue = "0.3",
+          description = "Chance that an image is in an album.")
+  private double albumRate;
+
+  @CommandLine.Option(names = {"--people"}, defaultValue = "0",
+          description = "How many people (face tokens) there are. 0 means no faces at all.")
+  private int people;
+
+  @CommandLine.Option(names = {"--face-rate"}, defaultValue = "0.25",
+          description = "Chance that an image has faces tagged in it.")
+  private double faceRate;
+
+  @CommandLine.Option(names = {"--contacts-rate"}, defaultValue = "1.0",
+          description = "Chance that a folder with faces in it gets a [Contacts2] block naming them.")
+  private double contactsRate;
+
+  @CommandLine.Option(names = {"--phantom-rate"}, defaultValue = "0.0",
+          description = "Chance that an album token on an image points at an album the file never defines.")
+  private double phantomRate;
+
+  @CommandLine.Option(names = {"--stale-rate"}, defaultValue = "0.0",
+          description = "Chance per image of an extra ini entry for a file that has since been deleted.")
+  private double staleRate;
+
+  // Cumulative keyword weights, for drawing keywords by binary search.
+  private double[] keywordCdf;
+  private String[] albumTokens;
+  private String[] peopleTokens;
+
+  public static void main(String[] args) {
+    int exitCode = new CommandLine(new CorpusGenerator()).execute(args);
+    System.exit(exitCode);
+  }
+
+  @Override
+  public void run() {
+    String[] existing = out.list();
+    if (existing != null && existing.length > 0) {
+      System.out.println(out + " isn't empty. Not generating anything there.");
+      return;
+    }
+    if (!out.isDirectory() && !out.mkdirs()) {
+      System.out.println("Couldn't create " + out + ".");
+      return;
+    }
+    long start = System.currentTimeMillis();
+    try {
+      long images = generate();
+      System.out.println("Generated " + folders + " folders and " + images + " images in "
+              + (System.currentTimeMillis() - start) + " ms.");
+      System.out.println("Run Kahla with: -id=" + rootPath() + " -dd=" + rootPath() + " -r");
+    } catch (IOException | SQLException e) {
+      System.out.println("Couldn't finish generating the corpus.");
+      e.printStackTrace();
+    }
+  }
+
+  private String rootPath() {
+    return out.getAbsoluteFile().toPath().normalize().toString().replace('\\', '/');
+  }
+
+  /**
+   * Writes the whole corpus. Each folder gets its own Random seeded from the main seed and its
+   * number, so a folder's contents don't depend on how much randomness the folders before it used.
+   * @return how many images went into Images
+   */
+  private long generate() throws IOException, SQLException {
+    Random random = new Random(seed);
+    keywordCdf = zipfCdf(vocabulary, zipf);
+    albumTokens = new String[albums];
+    for (int i = 0; i < albums; i++) {
+      albumTokens[i] = hex(random.nextLong(), 16) + hex(random.nextLong(), 16);
+    }
+    peopleTokens = new String[people];
+    for (int i = 0; i < people; i++) {
+      peopleTokens[i] = hex(random.nextLong(), 16);
+    }
+
+    String root = rootPath();
+    String[] paths = new String[folders];
+    long imageId = 0;
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + root + "/digikam4.db")) {
+      try (Statement st = conn.createStatement()) {
+        // Nobody's reading this database until we're done, so skip the safety nets.
+        st.execute("PRAGMA journal_mode = OFF");
+        st.execute("PRAGMA synchronous = OFF");
+        for (String ddl : SCHEMA) {
+          st.execute(ddl);
+        }
+      }
+      conn.setAutoCommit(false);
+      try (PreparedStatement rootStmt = conn.prepareStatement(
+              "INSERT INTO AlbumRoots (id, label, status, type, identifier, specificPath) VALUES (1, 'corpus', 0, 1, ?, ?)");
+           PreparedStatement albumStmt = conn.prepareStatement(
+                   "INSERT INTO Albums (id, albumRoot, relativePath) VALUES (?, 1, ?)");
+           PreparedStatement imageStmt = conn.prepareStatement(
+                   "INSERT INTO Images (id, album, name, status, category, modificationDate, fileSize, uniqueHash) "
+                           + "VALUES (?, ?, ?, 1, 1, '2015-06-01T12:00:00', ?, ?)");
+           PreparedStatement infoStmt = conn.prepareStatement(
+                   "INSERT INTO ImageInformation (imageid, width, height, format) VALUES (?, ?, ?, 'PNG')");
+           PreparedStatement tagStmt = conn.prepareStatement("INSERT INTO Tags (pid, name) VALUES (0, ?)")) {
+        rootStmt.setString(1, "volumeid:?path=" + root);
+        rootStmt.setString(2, root);
+        rootStmt.executeUpdate();
+
+        // Only some of the keywords are already in DigiKam; the rest Kahla will have to create.
+        for (int t = 0; t < vocabulary; t++) {
+          if (random.nextDouble() < knownTags) {
+            tagStmt.setString(1, keywordName(t));
+            tagStmt.addBatch();
+          }
+        }
+        tagStmt.executeBatch();
+
+        for (int f = 0; f < folders; f++) {
+          // Folder 0 is the album root; folder n's parent is (n - 1) / fanout.
+          paths[f] = f == 0 ? "/" : (f <= fanout ? "" : paths[(f - 1) / fanout]) + "/folder" + f;
+          File dir = f == 0 ? out : new File(out, paths[f].substring(1));
+          if (f > 0 && !dir.mkdir()) {
+            throw new IOException("Couldn't create " + dir);
+          }
+          albumStmt.setInt(1, f + 1);
+          albumStmt.setString(2, paths[f]);
+          albumStmt.addBatch();
+
+          Random folderRandom = new Random(seed * 31 + f);
+          for (int i = 0; i < imagesPerFolder; i++) {
+            imageId++;
+            imageStmt.setLong(1, imageId);
+            imageStmt.setInt(2, f + 1);
+            imageStmt.setString(3, imageName(i));
+            imageStmt.setLong(4, 50_000 + folderRandom.nextInt(5_000_000));
+            imageStmt.setString(5, hex(folderRandom.nextLong(), 16) + hex(folderRandom.nextLong(), 16));
+            imageStmt.addBatch();
+            int[] size = IMAGE_SIZES[folderRandom.nextInt(IMAGE_SIZES.length)];
+            infoStmt.setLong(1, imageId);
+            infoStmt.setInt(2, size[0]);
+            infoStmt.setInt(3, size[1]);
+            infoStmt.addBatch();
+          }
+          imageStmt.executeBatch();
+          infoStmt.executeBatch();
+          writeIni(new File(dir, INI_NAME), folderRandom);
+        }
+        albumStmt.executeBatch();
+      }
+      conn.commit();
+    }
+    return imageId;
+  }
+
+  /**
+   * Writes one folder's .picasa.ini: album definitions for the albums its images are in, a section
+   * per image, any stale sections for deleted files, and usually a [Contacts2] block at the end.
+   */
+  private void writeIni(File f, Random random) throws IOException {
+    StringBuilder images = new StringBuilder(imagesPerFolder * 96);
+    boolean[] usedAlbums = new boolean[albums];
+    boolean[] usedPeople = new boolean[people];
+    StringBuilder phantoms = new StringBuilder();
+    int[] picked = new int[keywordsPerImage];
+    int stale = 0;
+
+    for (int i = 0; i < imagesPerFolder; i++) {
+      images.append('[').append(imageName(i)).append("]\n");
+      appendKeywords(images, random, picked);
+      if (albums > 0 && random.nextDouble() < albumRate) {
+        images.append("albums=");
+        if (random.nextDouble() < phantomRate) {
+          // An album this file never defines. Sometimes there's an empty section for it, sometimes not.
+          String token = hex(random.nextLong(), 16) + hex(random.nextLong(), 16);
+          images.append(token);
+          if (random.nextBoolean()) {
+            phantoms.append("[.album:").append(token).append("]\n");
+          }
+        } else {
+          int album = random.nextInt(albums);
+          usedAlbums[album] = true;
+          images.append(albumTokens[album]);
+        }
+        images.append('\n');
+      }
+      if (people > 0 && random.nextDouble() < faceRate) {
+        images.append("faces=");
+        int faces = 1 + random.nextInt(3);
+        for (int k = 0; k < faces; k++) {
+          int person = random.nextInt(people);
+          usedPeople[person] = true;
+          images.append(k == 0 ? "" : ";").append("rect64(");
+          appendHex(images, random.nextLong(), 16);
+          images.append("),").append(peopleTokens[person]);
+        }
+        images.append('\n');
+      }
+      images.append("backuphash=").append(random.nextInt(65536)).append('\n');
+      if (random.nextDouble() < staleRate) {
+        images.append("[IMG_deleted_").append(stale++).append(".png]\n");
+        appendKeywords(images, random, picked);
+      }
+    }
+
+    try (Writer w = Files.newBufferedWriter(f.toPath(), Charset.defaultCharset())) {
+      for (int a = 0; a < albums; a++) {
+        if (usedAlbums[a]) {
+          w.write("[.album:" + albumTokens[a] + "]\nname=album " + a + "\ntoken=" + albumTokens[a]
+                  + "\ndate=2015-06-01T12:00:00-07:00\n");
+        }
+      }
+      w.append(phantoms);
+      w.append(images);
+      if (people > 0 && random.nextDouble() < contactsRate) {
+        w.write("[Contacts2]\n");
+        for (int p = 0; p < people; p++) {
+          if (usedPeople[p]) {
+            w.write(peopleTokens[p] + "=person " + p + ";;\n");
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends a keywords= line with between 1 and --keywords distinct keywords on it.
+   * @param picked scratch space for the keywords already on this line
+   */
+  private void appendKeywords(StringBuilder sb, Random random, int[] picked) {
+    if (keywordsPerImage <= 0 || vocabulary <= 0) {
+      return;
+    }
+    int count = Math.min(1 + random.nextInt(keywordsPerImage), vocabulary);
+    sb.append("keywords=");
+    for (int k = 0; k < count; k++) {
+      int keyword = nextKeyword(random);
+      // Picasa doesn't repeat a keyword on one image. Popular ones get drawn twice a lot, so redraw.
+      for (int j = 0; j < k; j++) {
+        if (picked[j] == keyword) {
+          keyword = nextKeyword(random);
+          j = -1;
+        }
+      }
+      picked[k] = keyword;
+      sb.append(k == 0 ? "" : ",").append(keywordName(keyword));
+    }
+    sb.append('\n');
+  }
+
+  private int nextKeyword(Random random) {
+    int i = Arrays.binarySearch(keywordCdf, random.nextDouble());
+    // binarySearch gives -(insertion point) - 1 for misses, which is the bucket we landed in.
+    return Math.min(i < 0 ? -i - 1 : i, keywordCdf.length - 1);
+  }
+
+  /**
+   * @return cumulative weights for `n` ranks with weight 1/(rank^s), scaled so the last one is 1
+   */
+  static double[] zipfCdf(int n, double s) {
+    double[] cdf = new double[n];
+    double total = 0;
+    for (int i = 0; i < n; i++) {
+      total += 1.0 / Math.pow(i + 1, s);
+      cdf[i] = total;
+    }
+    for (int i = 0; i < n; i++) {
+      cdf[i] /= total;
+    }
+    return cdf;
+  }
+
+  static String imageName(int i) {
+    return "IMG_" + i + ".png";
+  }
+
+  static String keywordName(int rank) {
+    return "keyword " + rank;
+  }
+
+  private static String hex(long value, int digits) {
+    StringBuilder sb = new StringBuilder(digits);
+    appendHex(sb, value, digits);
+    return sb.toString();
+  }
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static void appendHex(StringBuilder sb, long value, int digits) {
+    for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+      sb.append(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
+    }
+  }
+}
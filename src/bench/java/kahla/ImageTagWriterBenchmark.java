@@ -0,0 +1,72 @@
+package kahla;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing ImageTags rows: one committed batch per invocation, the way a folder's worth of tags gets
+ * written. Each invocation writes rows that aren't in the table yet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageTagWriterBenchmark {
+  @Param({"small", "medium", "large"})
+  public BenchCorpus.Size size;
+
+  @Param({"1000"})
+  public int rowsPerBatch;
+
+  private BenchCorpus corpus;
+  private Connection conn;
+  private TagDictionary tags;
+  private ImageTagWriter writer;
+  private int images;
+  private long row;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, SQLException {
+    corpus = new BenchCorpus(size);
+    conn = corpus.connect();
+    tags = new TagDictionary(conn);
+    writer = new ImageTagWriter(conn, 0, tags, null);
+    images = size.folders * size.imagesPerFolder;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, SQLException {
+    writer.close();
+    tags.close();
+    conn.close();
+    corpus.delete();
+  }
+
+  @Benchmark
+  public boolean writeBatch() {
+    writer.beginSource("bench");
+    for (int i = 0; i < rowsPerBatch; i++, row++) {
+      // Walk every (image, tag) pair in order so nothing gets ignored as a duplicate.
+      writer.add((int) (row % images) + 1, (int) (row / images % size.tags) + 1);
+    }
+    return writer.endSource();
+  }
+}
@@ -0,0 +1,73 @@
+package kahla;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing one folder's .picasa.ini (album and face tags included), with the single-pass
+ * PicasaIniParser and with the old two-pass Scanner parser it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IniParserBenchmark {
+  @Param({"small", "medium", "large"})
+  public BenchCorpus.Size size;
+
+  private File ini;
+
+  @Setup
+  public void setup() throws IOException {
+    ini = File.createTempFile("kahla-bench", ".ini");
+    BenchCorpus.writeIni(ini, size.imagesPerFolder, size.tags);
+    // Make sure both parsers actually agree before timing anything.
+    List<PicasaIni.Entry> expected = LegacyIniParser.parse(ini);
+    List<PicasaIni.Entry> actual = PicasaIniParser.parse(ini, true).getEntries();
+    if (expected.size() != actual.size()) {
+      throw new IllegalStateException("The parsers disagree on the generated file.");
+    }
+    for (int i = 0; i < expected.size(); i++) {
+      if (!expected.get(i).getTags().equals(actual.get(i).getTags())) {
+        throw new IllegalStateException("The parsers disagree on " + expected.get(i).getImageName());
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    ini.delete();
+  }
+
+  @Benchmark
+  public PicasaIni streaming() throws IOException {
+    return PicasaIniParser.parse(ini, true);
+  }
+
+  @Benchmark
+  public PicasaIni streamingWithHash() throws IOException {
+    return PicasaIniParser.parse(ini, true, true);
+  }
+
+  @Benchmark
+  public List<PicasaIni.Entry> legacyScanner() throws IOException {
+    return LegacyIniParser.parse(ini);
+  }
+}
@@ -0,0 +1,86 @@
+package kahla;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * The Scanner-based parser PicasaIniParser replaced, kept here to compare against. It reads the
+ * file twice: once for album/face tokens and once for the images.
+ */
+class LegacyIniParser {
+  private static final String METATAG_AFFIX = "pmeta/";
+
+  static List<PicasaIni.Entry> parse(File f) throws FileNotFoundException {
+    Scanner iniFile = new Scanner(f);
+    HashMap<String, String> picasaMetaTokens = buildTokenMap(iniFile);
+    iniFile.close();
+    iniFile = new Scanner(f);
+
+    List<PicasaIni.Entry> entries = new ArrayList<>();
+    String nextLine = iniFile.nextLine();
+    while (iniFile.hasNextLine()) {
+      String imageName = nextLine.substring(1, nextLine.length() - 1);
+      List<String> tags = new LinkedList<>();
+      do {
+        nextLine = iniFile.nextLine();
+        if (nextLine.startsWith("keywords")) {
+          tags.addAll(List.of(nextLine.substring(nextLine.indexOf('=') + 1).split(",")));
+        }
+        else if (nextLine.startsWith("albums")) {
+          for (String t : nextLine.substring(nextLine.indexOf('=') + 1).split(",")) {
+            tags.add(METATAG_AFFIX + picasaMetaTokens.get(t));
+          }
+        }
+        else if (nextLine.startsWith("faces")) {
+          for (String p : nextLine.substring(nextLine.indexOf('=') + 1).split(";")) {
+            tags.add(METATAG_AFFIX + picasaMetaTokens.get(p.substring(p.indexOf(",") + 1)));
+          }
+        }
+      } while (nextLine.charAt(0) != '[' && iniFile.hasNextLine());
+      if (!tags.isEmpty()) {
+        entries.add(new PicasaIni.Entry(imageName, tags));
+      }
+    }
+    iniFile.close();
+    return entries;
+  }
+
+  private static HashMap<String, String> buildTokenMap(Scanner iniFile) {
+    HashMap<String, String> picasaMetaTokens = new HashMap<>();
+    String nextLine = iniFile.nextLine();
+    while (iniFile.hasNextLine()) {
+      if (nextLine.startsWith("[.album")) {
+        nextLine = iniFile.nextLine();
+        String name = nextLine.substring(nextLine.indexOf('=') + 1);
+        nextLine = iniFile.nextLine();
+        if (nextLine.startsWith("[")) {
+          continue;
+        }
+        String token = nextLine.substring(nextLine.indexOf('=') + 1);
+        picasaMetaTokens.put(token, name);
+      }
+      else if (nextLine.equals("[Contacts2]")) {
+        nextLine = iniFile.nextLine();
+        while (!nextLine.startsWith("[")) {
+          String token = nextLine.substring(0, nextLine.indexOf('='));
+          String name = nextLine.substring(nextLine.indexOf('=') + 1, nextLine.indexOf(';'));
+          picasaMetaTokens.put(token, name);
+          // The original threw here when [Contacts2] was the last thing in the file.
+          if (!iniFile.hasNextLine()) {
+            break;
+          }
+          nextLine = iniFile.nextLine();
+        }
+      }
+      else {
+        nextLine = iniFile.nextLine();
+      }
+    }
+    return picasaMetaTokens;
+  }
+}
@@ -0,0 +1,92 @@
+package kahla;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning tag names into digiKam tag IDs: looking up tags that already exist, creating new ones,
+ * and loading the Tags table in the first place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagDictionaryBenchmark {
+  @Param({"small", "medium", "large"})
+  public BenchCorpus.Size size;
+
+  private BenchCorpus corpus;
+  private Connection conn;
+  private TagDictionary tags;
+  private String[] names;
+  private int next;
+  private int created;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, SQLException {
+    corpus = new BenchCorpus(size);
+    conn = corpus.connect();
+    names = new String[size.tags];
+    for (int t = 0; t < size.tags; t++) {
+      names[t] = BenchCorpus.tagName(t);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void startIteration() throws SQLException {
+    // New tags go into a transaction that gets thrown away afterwards, so every iteration starts
+    // from the same Tags table.
+    conn.setAutoCommit(false);
+    tags = new TagDictionary(conn);
+  }
+
+  @TearDown(Level.Iteration)
+  public void endIteration() throws SQLException {
+    tags.close();
+    conn.rollback();
+    conn.setAutoCommit(true);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, SQLException {
+    conn.close();
+    corpus.delete();
+  }
+
+  @Benchmark
+  public int resolveExisting() {
+    next = (next + 1) % names.length;
+    return tags.resolve(names[next]);
+  }
+
+  @Benchmark
+  public int createNew() {
+    return tags.resolve("new tag " + created++);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public TagDictionary load() throws SQLException {
+    TagDictionary loaded = new TagDictionary(conn);
+    loaded.close();
+    return loaded;
+  }
+}
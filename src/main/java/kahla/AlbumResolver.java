@@ -0,0 +1,130 @@
+package kahla;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+
+/**
+ * Works out which DigiKam album a directory on disk is, without going back to the database for
+ * every folder in a walk. AlbumRoots is usually only a handful of rows and Albums is one row per
+ * folder, so both are read into memory once and every lookup after that is a few hash lookups.
+ */
+public class AlbumResolver {
+  private static final String QUERY_LOAD_ROOTS = "SELECT id, specificPath FROM AlbumRoots ORDER BY id";
+  private static final String QUERY_LOAD_ALBUMS = "SELECT id, albumRoot, relativePath FROM Albums";
+
+  // specificPath -> album root ID
+  private final HashMap<String, Integer> rootIds = new HashMap<>();
+  // album root ID -> (relativePath -> album ID)
+  private final HashMap<Integer, HashMap<String, Integer>> albumIds = new HashMap<>();
+
+  /**
+   * Loads AlbumRoots and Albums into memory.
+   * @param conn an open connection to DigiKam's database
+   * @throws SQLException if either table can't be read
+   */
+  public AlbumResolver(Connection conn) throws SQLException {
+    try (Statement st = conn.createStatement()) {
+      try (ResultSet res = st.executeQuery(QUERY_LOAD_ROOTS)) {
+        while (res.next()) {
+          // Looking the path up in SQL used to give us the oldest root, so keep the first one.
+          rootIds.putIfAbsent(res.getString("specificPath"), res.getInt("id"));
+        }
+      }
+      try (ResultSet res = st.executeQuery(QUERY_LOAD_ALBUMS)) {
+        while (res.next()) {
+          albumIds.computeIfAbsent(res.getInt("albumRoot"), k -> new HashMap<>())
+                  .put(res.getString("relativePath"), res.getInt("id"));
+        }
+      }
+    }
+  }
+
+  /**
+   * Fetch the unique ID DigiKam has assigned to the folder with full path `directoryName`. Returns
+   * -1 if DigiKam isn't tracking this directory.
+   * @param directoryName a filepath with single forward slashes
+   * @return DigiKam's album ID for the directory or -1 if not found
+   */
+  public int resolve(String directoryName) {
+    // DigiKam stores directory paths in an extremely wack way. We need to figure out the albumRoot
+    // in order to figure out what albumID we're in.
+    String[] split = split(directoryName);
+    if (split == null) {
+      // No root at all means this folder doesn't exist in DigiKam.
+      return -1;
+    }
+    int albumRootId = rootIds.get(split[0]);
+
+    HashMap<String, Integer> albums = albumIds.get(albumRootId);
+    if (albums == null) {
+      return -1;
+    }
+    Integer albumId = albums.get(split[1]);
+    return albumId == null ? -1 : albumId;
+  }
+
+  /**
+   * Splits `directoryName` into the two halves DigiKam stores it as: an album root's specificPath
+   * and the album's relativePath under it. The album might not actually exist.
+   * @param directoryName a filepath with single forward slashes
+   * @return {specificPath, relativePath}, or null if no album root contains `directoryName`
+   */
+  public String[] split(String directoryName) {
+    String relativePath = stripDriveLetter(directoryName);
+    int cut = findRoot(relativePath);
+    if (cut <= 0) {
+      return null;
+    }
+    // If there's nothing left over, the current directory is an album root and should just be "/".
+    String leftoverPath = cut == relativePath.length() ? "/" : relativePath.substring(cut);
+    return new String[] {relativePath.substring(0, cut), leftoverPath};
+  }
+
+  /**
+   * Checks whether `directoryName` is somewhere inside one of DigiKam's album roots (or is one).
+   * DigiKam scans everything under its roots, so a folder inside a root that still has no album is
+   * one DigiKam has been told to ignore, and so is everything under it.
+   * @param directoryName a filepath with single forward slashes
+   * @return true if some album root contains `directoryName`
+   */
+  public boolean isInsideRoot(String directoryName) {
+    return findRoot(stripDriveLetter(directoryName)) > 0;
+  }
+
+  /**
+   * DigiKam stores directory paths without the drive letter on them for some reason, so we need
+   * to trim that off.
+   */
+  private static String stripDriveLetter(String directoryName) {
+    String relativePath = directoryName;
+    if (directoryName.contains(":")) {
+      relativePath = directoryName.substring(directoryName.indexOf(':') + 1);
+      // If it's only one character long, it's a single '/' and the album's root directory; otherwise,
+      // we need to remove a possible trailing slash.
+      if (relativePath.length() > 1 && relativePath.endsWith("/")) {
+        relativePath = relativePath.substring(0, relativePath.length() - 1);
+      }
+    }
+    return relativePath;
+  }
+
+  /**
+   * Lops components off the end of `relativePath` until what's left is a root we know, so the
+   * longest matching root wins. Anything we lop off will be a path stored in Albums.
+   * @return how many characters of `relativePath` make up the album root's path, or 0 or less if
+   * there's no matching root
+   */
+  private int findRoot(String relativePath) {
+    int cut = relativePath.length();
+    while (cut > 0) {
+      if (rootIds.containsKey(relativePath.substring(0, cut))) {
+        return cut;
+      }
+      cut = relativePath.lastIndexOf('/', cut - 1);
+    }
+    return cut;
+  }
+}
@@ -0,0 +1,304 @@
+package kahla;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
+
+/**
+ * Runs an import against a copy of digikam4.db with all of SQLite's safety nets off, then swaps
+ * the copy in for the original once it's been checked over. This is a lot faster for a big one-off
+ * migration, and if anything goes wrong (a failed write, a crash, the power going out) the worst
+ * case is a half-finished copy lying next to an untouched original.
+ *
+ * The copy is made with SQLite's backup API, so it's a consistent snapshot even if the original
+ * is in use. While we work on it, the ImageTags indexes (other than the one backing its UNIQUE
+ * constraint, which INSERT OR IGNORE needs) are dropped; building them once at the end is much
+ * cheaper than keeping them up to date one row at a time.
+ */
+public class BulkLoad {
+  private static final String JDBC_AFFIX = "jdbc:sqlite:";
+  private static final String COPY_SUFFIX = ".kahla-bulk";
+  // 256 MiB, given in KiB the way SQLite wants a negative cache_size.
+  private static final int CACHE_KIB = 256 * 1024;
+
+  private static final String QUERY_IMAGETAGS_INDEXES = "SELECT name, sql FROM sqlite_master "
+          + "WHERE type = 'index' AND tbl_name = 'ImageTags' AND sql IS NOT NULL";
+
+  private final File original;
+  private final File copy;
+  private final Connection conn;
+  private final String journalMode;
+  // What the original looked like right after we copied it, so we can tell if anyone wrote to it since.
+  private final String originalStamp;
+  // CREATE INDEX statements for the indexes we dropped.
+  private final List<String> droppedIndexes = new ArrayList<>();
+  // Our copy of Kahla's journal, and where it goes once we're done, if we're keeping one.
+  private File journalCopy;
+  private File journal;
+
+  private BulkLoad(File original, File copy, Connection conn, String journalMode) {
+    this.original = original;
+    this.copy = copy;
+    this.conn = conn;
+    this.journalMode = journalMode;
+    this.originalStamp = stamp(original);
+  }
+
+  /**
+   * Copies the database at `dbPath` and opens the copy for bulk loading. Returns null (after
+   * saying why) if that can't be done; the original is left alone either way.
+   * @param dbPath the full path to digikam4.db
+   * @return the bulk load, ready for writing, or null
+   */
+  public static BulkLoad open(String dbPath) {
+    File original = new File(dbPath);
+    File copy = new File(dbPath + COPY_SUFFIX);
+    // A leftover journal means DigiKam is open or didn't close cleanly. Swapping a new file in
+    // under it would have SQLite replay it onto the wrong database.
+    for (String suffix : new String[] {"-wal", "-journal"}) {
+      File f = new File(dbPath + suffix);
+      if (f.length() > 0) {
+        System.out.println("Found "+f.getName()+" next to the database, so DigiKam is probably open or " +
+                "didn't close cleanly. Open and close DigiKam (or run without --bulk) first.");
+        return null;
+      }
+    }
+    if (copy.exists() && !copy.delete()) {
+      System.out.println("Couldn't clear out "+copy+" from an earlier --bulk run.");
+      return null;
+    }
+
+    String journalMode;
+    System.out.println("Copying "+original.getName()+" to work on. This can take a minute on a big library.");
+    try {
+      SQLiteConfig readOnly = new SQLiteConfig();
+      readOnly.setReadOnly(true);
+      BusyRetry.configure(readOnly);
+      try (Connection source = DriverManager.getConnection(JDBC_AFFIX+dbPath, readOnly.toProperties());
+           Statement st = source.createStatement()) {
+        try (ResultSet res = st.executeQuery("PRAGMA journal_mode")) {
+          journalMode = res.next() ? res.getString(1) : "delete";
+        }
+        ((SQLiteConnection) source).getDatabase().backup("main", copy.getPath(), null);
+      }
+    } catch (SQLException throwables) {
+      System.out.println("Couldn't copy the database. (Is DigiKam open?)");
+      throwables.printStackTrace();
+      copy.delete();
+      return null;
+    }
+
+    Connection conn = null;
+    try {
+      // Nothing else will ever see this file unless it comes out right, so durability buys us nothing.
+      SQLiteConfig config = new SQLiteConfig();
+      config.setJournalMode(SQLiteConfig.JournalMode.OFF);
+      config.setSynchronous(SQLiteConfig.SynchronousMode.OFF);
+      config.setLockingMode(SQLiteConfig.LockingMode.EXCLUSIVE);
+      config.setCacheSize(-CACHE_KIB);
+      config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+      conn = DriverManager.getConnection(JDBC_AFFIX+copy.getPath(), config.toProperties());
+      BulkLoad bulk = new BulkLoad(original, copy, conn, journalMode);
+      bulk.dropIndexes();
+      return bulk;
+    } catch (SQLException throwables) {
+      System.out.println("Couldn't open the copy of the database.");
+      throwables.printStackTrace();
+      try {
+        if (conn != null) {
+          conn.close();
+        }
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+      copy.delete();
+      return null;
+    }
+  }
+
+  /**
+   * @return the connection to the copy; everything should be written through this
+   */
+  public Connection getConnection() {
+    return conn;
+  }
+
+  /**
+   * Makes a copy of Kahla's journal to go along with the copy of the database, so the journal can't
+   * end up claiming work that never made it into DigiKam.
+   * @param journalPath where the journal normally lives
+   * @return the path of the copy to attach instead
+   * @throws IOException if the journal exists and can't be copied
+   */
+  public String stageJournal(String journalPath) throws IOException {
+    journal = new File(journalPath);
+    journalCopy = new File(journalPath + COPY_SUFFIX);
+    if (journal.exists()) {
+      Files.copy(journal.toPath(), journalCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.deleteIfExists(journalCopy.toPath());
+    }
+    return journalCopy.getPath();
+  }
+
+  private void dropIndexes() throws SQLException {
+    List<String> names = new ArrayList<>();
+    try (Statement st = conn.createStatement()) {
+      try (ResultSet res = st.executeQuery(QUERY_IMAGETAGS_INDEXES)) {
+        while (res.next()) {
+          names.add(res.getString("name"));
+          droppedIndexes.add(res.getString("sql"));
+        }
+      }
+      for (String name : names) {
+        st.execute("DROP INDEX \"" + name.replace("\"", "\"\"") + "\"");
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the indexes, checks the copy over and swaps it in for the original. If `clean` is
+   * false, or anything along the way fails, the copy is thrown away instead and the original is
+   * left exactly as it was. Closes the connection either way.
+   * @param clean false if any writes failed during the run; with journaling off, a rolled back
+   *              write can't be trusted to have actually rolled back, so the copy isn't used
+   * @return true if the original now has everything that was written to the copy
+   */
+  public boolean finish(boolean clean) {
+    if (!clean) {
+      System.out.println("Some writes failed, and with journaling off they can't be cleanly rolled " +
+              "back. The copy won't be used.");
+      discard();
+      return false;
+    }
+    try (Statement st = conn.createStatement()) {
+      System.out.println("Rebuilding "+droppedIndexes.size()+" ImageTags indexes.");
+      for (String sql : droppedIndexes) {
+        st.execute(sql);
+      }
+      System.out.println("Checking the copy's integrity.");
+      try (ResultSet res = st.executeQuery("PRAGMA integrity_check")) {
+        String result = res.next() ? res.getString(1) : "";
+        if (!result.equals("ok")) {
+          System.out.println("The copy failed its integrity check ("+result+"). It won't be used.");
+          discard();
+          return false;
+        }
+      }
+      // Put the journal mode back the way DigiKam had it; OFF would otherwise stick for WAL databases.
+      if (!journalMode.equalsIgnoreCase("off")) {
+        st.execute("PRAGMA journal_mode = " + journalMode);
+      }
+    } catch (SQLException throwables) {
+      System.out.println("Couldn't finish up the copy of the database. It won't be used.");
+      throwables.printStackTrace();
+      discard();
+      return false;
+    }
+    close();
+
+    if (!stamp(original).equals(originalStamp)) {
+      System.out.println(original.getName()+" was changed by something else while we were working, so " +
+              "the copy can't be swapped in without losing those changes. Left it at "+copy+".");
+      deleteJournalCopy();
+      return false;
+    }
+    if (!swapIn()) {
+      deleteJournalCopy();
+      return false;
+    }
+    // The database goes first: a journal that's behind just means some redundant work next time.
+    if (journalCopy != null) {
+      try {
+        move(journalCopy, journal);
+      } catch (IOException e) {
+        System.out.println("Couldn't update the journal; the next -j run will redo some work.");
+        e.printStackTrace();
+        deleteJournalCopy();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Closes and deletes the copy, leaving the original alone.
+   */
+  public void discard() {
+    close();
+    if (!copy.delete()) {
+      System.out.println("Couldn't delete "+copy+"; it's safe to delete by hand.");
+    }
+    deleteJournalCopy();
+    System.out.println(original.getName()+" hasn't been touched.");
+  }
+
+  /**
+   * Puts the copy where the original was. Renaming over the original is atomic, so it's either all
+   * the old file or all the new one. If the file system can't do that, the copy gets written back
+   * into the original with the backup API instead, which happens in a single transaction.
+   */
+  private boolean swapIn() {
+    try {
+      Files.move(copy.toPath(), original.toPath(), StandardCopyOption.ATOMIC_MOVE,
+              StandardCopyOption.REPLACE_EXISTING);
+      System.out.println("Swapped the new database in.");
+      return true;
+    } catch (IOException e) {
+      System.out.println("Couldn't swap the new database in by renaming it ("+e+"). Writing it back instead.");
+    }
+    SQLiteConfig config = new SQLiteConfig();
+    BusyRetry.configure(config);
+    try (Connection target = DriverManager.getConnection(JDBC_AFFIX+original.getPath(), config.toProperties())) {
+      ((SQLiteConnection) target).getDatabase().restore("main", copy.getPath(), null);
+    } catch (SQLException throwables) {
+      System.out.println("Couldn't write the new database back. (Is DigiKam open?) "+original.getName()+
+              " hasn't been changed; the finished copy is at "+copy+".");
+      throwables.printStackTrace();
+      return false;
+    }
+    copy.delete();
+    System.out.println("Wrote the new database back.");
+    return true;
+  }
+
+  private static void move(File from, File to) throws IOException {
+    try {
+      Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void deleteJournalCopy() {
+    if (journalCopy != null) {
+      journalCopy.delete();
+    }
+  }
+
+  private void close() {
+    try {
+      if (!conn.isClosed()) {
+        conn.close();
+      }
+    } catch (SQLException throwables) {
+      throwables.printStackTrace();
+    }
+  }
+
+  private static String stamp(File f) {
+    File wal = new File(f.getPath() + "-wal");
+    return f.length()+"/"+f.lastModified()+"/"+wal.length()+"/"+wal.lastModified();
+  }
+}
@@ -0,0 +1,120 @@
+package kahla;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * Waits out DigiKam when it has the database locked. DigiKam writes to its database every so often
+ * while it's open (scanning for new files, mostly), and while it does, SQLite tells anyone else who
+ * wants to write (or, outside WAL mode, read) that the database is busy. That used to get reported
+ * and then skipped, which quietly left whole folders untagged.
+ *
+ * There are two layers to this. Every connection gets a busy timeout, so SQLite itself keeps
+ * trying for a little while before giving up. If it still gives up, run() backs off (doubling the
+ * wait every time) and tries again, a handful of times, before letting the error through.
+ *
+ * Retrying a statement on its own is only safe if we already hold the write lock, or haven't
+ * started writing at all. In the second case the transaction gets rolled back before retrying,
+ * which lets go of anything we'd read (in WAL mode, a stale snapshot can never be upgraded to a
+ * write, and outside it, our read lock can be exactly what DigiKam is waiting on).
+ */
+public class BusyRetry {
+  // How long SQLite keeps trying to get a lock on its own before giving up.
+  public static final int BUSY_TIMEOUT_MILLIS = 1000;
+  private static final int MAX_ATTEMPTS = 8;
+  private static final long FIRST_BACKOFF_MILLIS = 100;
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+  // SQLite's result codes. Extended codes like SQLITE_BUSY_SNAPSHOT keep these in the low byte.
+  private static final int SQLITE_BUSY = 5;
+  private static final int SQLITE_LOCKED = 6;
+
+  /**
+   * Some work against the database that can safely be run again.
+   */
+  public interface Action<T> {
+    T run() throws SQLException;
+  }
+
+  private final Connection conn;
+  private final RunMetrics metrics;
+
+  /**
+   * @param conn the connection the work is done on
+   * @param metrics where to record retries and time spent waiting for locks
+   */
+  public BusyRetry(Connection conn, RunMetrics metrics) {
+    this.conn = conn;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Sets the busy timeout on a connection that's about to be opened.
+   */
+  public static void configure(SQLiteConfig config) {
+    config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Runs `action`, trying again with backoff for as long as the database is busy (up to a point).
+   * @param action the work to do; it has to be fine to run it more than once
+   * @param fresh true if nothing has been written in the open transaction yet, so it can be rolled
+   *              back before retrying; false if it has to be retried in place
+   * @return whatever `action` returned
+   * @throws SQLException if `action` failed for some other reason, or the database stayed busy
+   */
+  public <T> T run(Action<T> action, boolean fresh) throws SQLException {
+    long backoff = FIRST_BACKOFF_MILLIS;
+    long waitStarted = -1;
+    for (int attempt = 1; ; attempt++) {
+      long t = metrics.start();
+      try {
+        T result = action.run();
+        if (waitStarted >= 0) {
+          metrics.stop(RunMetrics.Phase.LOCK_WAIT, waitStarted);
+        }
+        return result;
+      } catch (SQLException e) {
+        if (!isBusy(e)) {
+          throw e;
+        }
+        if (waitStarted < 0) {
+          waitStarted = t;
+        }
+        if (attempt == MAX_ATTEMPTS) {
+          metrics.stop(RunMetrics.Phase.LOCK_WAIT, waitStarted);
+          metrics.count(RunMetrics.Counter.LOCK_TIMEOUTS, 1);
+          throw e;
+        }
+        metrics.count(RunMetrics.Counter.BUSY_RETRIES, 1);
+        if (fresh && !conn.getAutoCommit()) {
+          conn.rollback();
+        }
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          metrics.stop(RunMetrics.Phase.LOCK_WAIT, waitStarted);
+          throw e;
+        }
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+      }
+    }
+  }
+
+  /**
+   * @return true if `e` (or anything that caused it) is SQLite saying the database is locked
+   */
+  public static boolean isBusy(SQLException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException) {
+        int code = ((SQLException) cause).getErrorCode() & 0xFF;
+        if (code == SQLITE_BUSY || code == SQLITE_LOCKED) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
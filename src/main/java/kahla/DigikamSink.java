@@ -0,0 +1,861 @@
+package kahla;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * Writes tags into DigiKam's SQLite database: works out which album each folder is and which
+ * image each entry is, creates any tags DigiKam doesn't have yet and links the two up in
+ * ImageTags. Everything it needs (the connection, the album and tag caches, the journal) belongs
+ * to the one instance, so separate libraries can be migrated side by side.
+ *
+ * It can also be opened read-only to fill in a TagPlan instead, going through the same steps
+ * without writing anything.
+ */
+public class DigikamSink implements TagSink {
+  private static final String JDBC_AFFIX = "jdbc:sqlite:";
+  private static final String DB_NAME = "digikam4.db";
+
+  // PreparedStatements.
+  private static final String QUERY_FETCH_IMAGEIDS = "SELECT name, id FROM Images WHERE album = ?";
+  private static final String QUERY_FETCH_ALBUM_DIMENSIONS = "SELECT ii.imageid, ii.width, ii.height " +
+          "FROM ImageInformation ii JOIN Images i ON i.id = ii.imageid WHERE i.album = ?";
+  private static final String QUERY_FETCH_DIMENSIONS = "SELECT imageid, width, height FROM ImageInformation " +
+          "WHERE imageid = ?";
+  private static final String QUERY_FETCH_ALBUM_IMAGETAGS = "SELECT it.imageid, it.tagid FROM ImageTags it " +
+          "JOIN Images i ON i.id = it.imageid WHERE i.album = ?";
+  // Only for planning, to tell face regions (and people) that are already there from new ones.
+  private static final String QUERY_FETCH_ALBUM_REGIONS = "SELECT itp.imageid, itp.tagid, itp.value " +
+          "FROM ImageTagProperties itp JOIN Images i ON i.id = itp.imageid " +
+          "WHERE i.album = ? AND itp.property = 'tagRegion'";
+  private static final String QUERY_FETCH_REGIONS = "SELECT imageid, tagid, value FROM ImageTagProperties " +
+          "WHERE imageid = ? AND property = 'tagRegion'";
+  private static final String QUERY_FETCH_PEOPLE = "SELECT tagid FROM TagProperties WHERE property = 'person'";
+
+  // What tagImage can come back with.
+  private static final int IMAGE_TAGGED = 1;
+  private static final int IMAGE_SKIPPED = 0;
+  private static final int IMAGE_FAILED = -1;
+
+  private final String dbDir;
+  private final int commitSize;
+  private final boolean useJournal;
+  private final boolean bulkLoad;
+  private final boolean sqlEngine;
+  // Only set when we're planning rather than writing.
+  private final TagPlan plan;
+  private boolean relocate;
+  private boolean faceRegions;
+
+  private RunMetrics metrics;
+  private Connection conn;
+  private BulkLoad bulk;
+  private BusyRetry retry;
+  // Swapped for a fresh one by refresh(), while the walk might be asking it things.
+  private volatile AlbumResolver albumResolver;
+  private TagDictionary tagDictionary;
+  private IniJournal journal;
+  private ImageTagWriter tagWriter;
+  private SqlImportEngine engine;
+  private RelocationIndex relocations;
+  // Planning with face regions only: tags that are already people, or that the plan has made one.
+  private Set<Integer> people;
+
+  /**
+   * @param dbDir the formatted user-provided digikam.db location
+   * @param commitSize how many ImageTags rows to write per transaction, or 0 for one per directory
+   * @param useJournal boolean flag, whether to skip ini files that haven't changed since the last run
+   * @param bulkLoad boolean flag, whether to work on a copy of the database with SQLite's safety
+   *                 nets off and swap it in at the end
+   * @param sqlEngine boolean flag, whether to stage everything in a TEMP table and match it up in
+   *                  SQL (see SqlImportEngine) instead of tagging folder by folder
+   */
+  public DigikamSink(String dbDir, int commitSize, boolean useJournal, boolean bulkLoad, boolean sqlEngine) {
+    this.dbDir = dbDir;
+    this.commitSize = commitSize;
+    this.useJournal = useJournal;
+    this.bulkLoad = bulkLoad;
+    this.sqlEngine = sqlEngine;
+    this.plan = null;
+  }
+
+  /**
+   * Opens the database read-only and, instead of writing anything, adds what a run would do to
+   * `plan`. Links already in ImageTags are loaded for each album in one query and compared in
+   * memory.
+   * @param dbDir the formatted user-provided digikam.db location
+   * @param plan the plan to fill in
+   */
+  public DigikamSink(String dbDir, TagPlan plan) {
+    this.dbDir = dbDir;
+    this.commitSize = 0;
+    this.useJournal = false;
+    this.bulkLoad = false;
+    this.sqlEngine = false;
+    this.plan = plan;
+  }
+
+  /**
+   * @param relocate boolean flag, whether to look for images picasa.ini mentions but DigiKam
+   *                 doesn't have in that folder everywhere else in the library (see
+   *                 RelocationIndex), and tag them where they are now
+   */
+  public void setRelocate(boolean relocate) {
+    this.relocate = relocate;
+  }
+
+  /**
+   * @param faceRegions boolean flag, whether to write where each facetagged person is in the
+   *                    picture as a DigiKam face region, along with their tag
+   */
+  public void setFaceRegions(boolean faceRegions) {
+    this.faceRegions = faceRegions;
+  }
+
+  @Override
+  public boolean open(RunMetrics metrics) {
+    this.metrics = metrics;
+    if (bulkLoad) {
+      bulk = BulkLoad.open(dbDir+"/"+DB_NAME);
+      if (bulk == null) {
+        return false;
+      }
+      conn = bulk.getConnection();
+    } else {
+      dbConnect(plan != null);
+      if (conn == null) {
+        return false;
+      }
+    }
+    retry = new BusyRetry(conn, metrics);
+    try {
+      albumResolver = retry.run(() -> new AlbumResolver(conn), false);
+      if (relocate && sqlEngine) {
+        System.out.println("Finding moved images only works with the default engine. Ignoring --relocate.");
+      } else if (relocate) {
+        long t = metrics.start();
+        relocations = retry.run(() -> new RelocationIndex(conn), false);
+        metrics.stop(RunMetrics.Phase.RELOCATE, t);
+        System.out.println("Indexed "+relocations.size()+" images to look for moved files in.");
+      }
+      if (plan != null) {
+        tagDictionary = new TagDictionary(conn, retry);
+        return true;
+      }
+      if (sqlEngine) {
+        if (useJournal) {
+          System.out.println("The journal only works with the default engine. Ignoring -j.");
+        }
+        if (faceRegions) {
+          System.out.println("Face regions only work with the default engine. Ignoring --face-regions.");
+        }
+        engine = new SqlImportEngine(conn, albumResolver, metrics, retry);
+      } else {
+        tagDictionary = new TagDictionary(conn, retry);
+        if (useJournal) {
+          String journalPath = dbDir+"/"+IniJournal.JOURNAL_NAME;
+          if (bulk != null) {
+            journalPath = bulk.stageJournal(journalPath);
+          }
+          // This has to be attached before the writer opens a transaction.
+          journal = new IniJournal(conn, journalPath);
+        }
+        tagWriter = new ImageTagWriter(conn, commitSize, tagDictionary, journal, retry);
+      }
+      return true;
+    } catch (SQLException | IOException e) {
+      System.out.println(plan != null ? "Couldn't read the database. (Is DigiKam open?)"
+              : "Couldn't set up the database for writing. (Is DigiKam open?)");
+      e.printStackTrace();
+      abort();
+      return false;
+    }
+  }
+
+  @Override
+  public boolean accepts(String directory) {
+    return albumResolver.resolve(directory) != -1;
+  }
+
+  /**
+   * DigiKam scans everything under its album roots, so a folder inside a root that still has no
+   * album is one DigiKam has been told to ignore, and so is everything under it.
+   */
+  @Override
+  public boolean ignores(String directory) {
+    return albumResolver.resolve(directory) == -1 && albumResolver.isInsideRoot(directory);
+  }
+
+  @Override
+  public boolean tracksFiles() {
+    return journal != null;
+  }
+
+  @Override
+  public boolean isUnchanged(String path, long size, long modified) {
+    return journal != null && journal.isUnchanged(path, size, modified);
+  }
+
+  @Override
+  public Status write(String directory, PicasaIni tags, DirectoryCounts counts) {
+    if (plan != null) {
+      planDirectory(directory, tags, counts);
+      return Status.WRITTEN;
+    }
+    if (engine != null) {
+      return engine.stage(directory, tags, counts) ? Status.STAGED : Status.FAILED;
+    }
+    // We need an albumId to tag things properly, or we'll choke on files with duplicate names.
+    long t = metrics.start();
+    int albumId = albumResolver.resolve(directory);
+    metrics.stop(RunMetrics.Phase.ALBUM_RESOLVE, t);
+    return processImages(tags, albumId, counts);
+  }
+
+  /**
+   * Reloads the albums, so folders DigiKam has scanned since we opened can be tagged.
+   */
+  @Override
+  public void refresh() {
+    try {
+      albumResolver = retry.run(() -> new AlbumResolver(conn), false);
+    } catch (SQLException throwables) {
+      System.out.println("Couldn't reload DigiKam's albums. (Is DigiKam open?)");
+      throwables.printStackTrace();
+    }
+  }
+
+  @Override
+  public List<String> flush() {
+    List<String> dirs = new ArrayList<>();
+    if (tagWriter == null) {
+      return dirs;
+    }
+    long t = metrics.start();
+    tagWriter.flush();
+    metrics.stop(RunMetrics.Phase.INSERT, t);
+    Set<String> seen = new LinkedHashSet<>();
+    for (String iniPath : tagWriter.takeFailedSources()) {
+      // Back to the forward slashes the walk hands out.
+      seen.add(new File(iniPath).getParent().replace('\\', '/'));
+    }
+    dirs.addAll(seen);
+    return dirs;
+  }
+
+  @Override
+  public boolean finish() {
+    if (relocations != null) {
+      System.out.println(metrics.get(RunMetrics.Counter.IMAGES_RELOCATED)+" images were found in other " +
+              "folders and "+(plan != null ? "would be " : "")+"tagged there. "+metrics.get(RunMetrics.Counter.IMAGES_AMBIGUOUS)+" matched more " +
+              "than one image in DigiKam, or only one of a different size, and were skipped.");
+    }
+    boolean clean = true;
+    if (engine != null) {
+      clean = engine.finish();
+    } else if (tagWriter != null) {
+      long t = metrics.start();
+      tagWriter.close();
+      metrics.stop(RunMetrics.Phase.INSERT, t);
+      if (journal != null) {
+        journal.close();
+      }
+      clean = tagWriter.getFailedBatches() == 0;
+    }
+    if (tagDictionary != null) {
+      tagDictionary.close();
+    }
+    if (bulk != null) {
+      // Everything so far went into the copy; this is where it replaces the original, or doesn't.
+      return bulk.finish(clean);
+    }
+    closeConnection();
+    return clean;
+  }
+
+  @Override
+  public void abort() {
+    if (bulk != null) {
+      bulk.discard();
+    } else {
+      closeConnection();
+    }
+  }
+
+  private void closeConnection() {
+    if (conn == null) {
+      return;
+    }
+    try {
+      conn.close();
+    } catch (SQLException throwables) {
+      // Cannot imagine how closing would fail (if we failed to open, we would've exited already)
+      // but here you go anyway.
+      throwables.printStackTrace();
+    }
+  }
+
+  /**
+   * Creates digiKam tags for all images listed in `ini`. Requires that `albumId` is the correct
+   * digiKam database album ID corresponding to the directory this ini file comes from.
+   * @param ini the parsed picasa.ini for this directory
+   * @param albumId the digiKam-assigned album ID for this directory
+   * @param counts where to count what got done in this directory
+   * @return FAILED if the database wouldn't let us finish, so the directory should be tried again
+   */
+  private Status processImages(PicasaIni ini, int albumId, DirectoryCounts counts) {
+    int filesTagged = 0; // For verbosely reporting everything we did as a sanity check.
+    int filesSkipped = 0;
+    // Grab the IDs of every image DigiKam knows about in this directory up front, in one query.
+    // This only lives until we're done with the directory.
+    long t = metrics.start();
+    HashMap<String, Integer> imageIds = fetchImageIDs(albumId);
+    metrics.stop(RunMetrics.Phase.IMAGE_RESOLVE, t);
+    if (imageIds == null) {
+      return Status.FAILED;
+    }
+    relocate(ini, albumId, imageIds);
+
+    tagWriter.beginSource(ini.getIniPath());
+    // If we're keeping a journal, find out what this file gave us last time; only what's new
+    // needs writing.
+    Set<Long> previous = null;
+    if (journal != null) {
+      IniJournal.FileState last = journal.lookup(ini.getIniPath());
+      if (last != null && last.getHash().equals(ini.getHash())) {
+        // Touched, but the contents are the same. Just remember the new modification time.
+        tagWriter.finishSource(ini);
+        endSource();
+        return Status.UNCHANGED;
+      }
+      previous = journal.fetchPairs(ini.getIniPath());
+    }
+
+    // Image sizes for working out where faces are, fetched the first time there's a face.
+    Map<Integer, Long> dimensions = null;
+    for (PicasaIni.Entry entry : ini.getEntries()) {
+      int result = tagImage(entry.getImageName(), entry.getTags(), imageIds, previous, counts);
+      if (result == IMAGE_TAGGED) {
+        filesTagged++;
+        if (faceRegions && entry.getFaceCount() > 0) {
+          if (dimensions == null) {
+            dimensions = fetchDimensions(albumId);
+          }
+          addRegions(entry, imageIds.get(entry.getImageName()), dimensions);
+        }
+      } else if (result == IMAGE_SKIPPED) { // If we didn't tag, that implies we found a Picasa-tagged
+        // image that DigiKam doesn't know about. User should probably be warned.
+        // Found out picasa.ini can track images that are no longer there, which will also cause this.
+        filesSkipped++;
+      } else {
+        // The database wouldn't let us write. The rest of the directory would only fail the same
+        // way. Whatever did get queued still goes out with the batch; it's all INSERT OR IGNORE, so
+        // doing the whole directory again later is harmless. The journal doesn't get told it's
+        // done, though.
+        endSource();
+        return Status.FAILED;
+      }
+    }
+
+    // If some album/face names couldn't be found, don't let the journal call this file done, so the
+    // next run (with --picasa-db, say) has another go at it.
+    if (journal != null && ini.getUnresolvedTokens() == 0) {
+      // Whatever's left in `previous` came from a version of this file that doesn't have it anymore.
+      // The tags stay on the images in DigiKam; the journal just stops crediting them to this file.
+      for (long pair : previous) {
+        tagWriter.forget(pair);
+      }
+      tagWriter.finishSource(ini);
+    }
+
+    // Tags are written in batches; if this directory closes out a batch, that's when we find out
+    // whether the writes actually went through.
+    counts.addImagesTagged(filesTagged);
+    counts.addImagesSkipped(filesSkipped);
+    if (!endSource()) {
+      metrics.count(RunMetrics.Counter.DIRECTORIES_ROLLED_BACK, 1);
+      System.out.println("Tags for this directory were rolled back.");
+      return Status.FAILED;
+    }
+    return Status.WRITTEN;
+  }
+
+  /**
+   * Closes out the current directory with the writer, timing any write that sets off.
+   * @return false if the writes were rolled back
+   */
+  private boolean endSource() {
+    long t = metrics.start();
+    boolean written = tagWriter.endSource();
+    metrics.stop(RunMetrics.Phase.INSERT, t);
+    return written;
+  }
+
+  /**
+   * Adds what tagging everything in `ini` would do to the plan, going through the same steps as
+   * processImages but only reading from the database.
+   * @param currentDir the directory `ini` was read from
+   * @param ini the parsed picasa.ini for `currentDir`
+   * @param counts where to count what would get done in this directory
+   */
+  private void planDirectory(String currentDir, PicasaIni ini, DirectoryCounts counts) {
+    int albumId = albumResolver.resolve(currentDir);
+    HashMap<String, Integer> imageIds = fetchImageIDs(albumId);
+    if (imageIds == null) {
+      imageIds = new HashMap<>();
+    }
+    Set<Long> links = fetchAlbumImageTags(albumId);
+    List<Integer> moved = relocate(ini, albumId, imageIds);
+    if (!moved.isEmpty()) {
+      // Those live in other albums, so their tags weren't in the album's lot.
+      links.addAll(fetchImageTags(moved));
+    }
+
+    TagPlan.DirectoryPlan dirPlan = plan.startDirectory(currentDir, ini.getIniPath());
+    // Image sizes and regions already there, fetched the first time there's a face.
+    Map<Integer, Long> dimensions = null;
+    Set<String> regions = null;
+    for (PicasaIni.Entry entry : ini.getEntries()) {
+      Integer imageId = imageIds.get(entry.getImageName());
+      if (imageId == null) {
+        dirPlan.imageSkipped();
+        counts.addImagesSkipped(1);
+        continue;
+      }
+      dirPlan.imageTagged();
+      counts.addImagesTagged(1);
+      // The same tag twice in one entry only makes the one link.
+      Set<Integer> entryTags = new HashSet<>();
+      for (String tag : entry.getTags()) {
+        int tagId = tagDictionary.lookup(tag);
+        if (tagId == -1) {
+          tagId = plan.newTag(dirPlan, tag);
+        }
+        if (!entryTags.add(tagId)) {
+          continue;
+        }
+        if (links.add(IniJournal.pack(imageId, tagId))) {
+          dirPlan.newLink();
+          counts.addImageTags(1);
+        } else {
+          dirPlan.existingLink();
+        }
+      }
+      if (faceRegions && entry.getFaceCount() > 0) {
+        if (dimensions == null) {
+          dimensions = fetchDimensions(albumId);
+          regions = fetchRegions(albumId, moved);
+        }
+        planRegions(entry, imageId, dimensions, regions, dirPlan);
+      }
+    }
+  }
+
+  /**
+   * Adds the face regions addRegions() would write for `entry` to the plan, and the tags a run
+   * would newly mark as people for them.
+   * @param regions regions already there (or already planned), as regionKey() has them; the ones
+   *                planned here get added
+   */
+  private void planRegions(PicasaIni.Entry entry, int imageId, Map<Integer, Long> dimensions, Set<String> regions,
+                           TagPlan.DirectoryPlan dirPlan) {
+    long size = imageSize(imageId, dimensions);
+    if (size == 0) {
+      return;
+    }
+    if (people == null) {
+      people = fetchPeople();
+    }
+    for (int i = 0; i < entry.getFaceCount(); i++) {
+      String tag = entry.getFaceTag(i);
+      int tagId = tagDictionary.lookup(tag);
+      if (tagId == -1) {
+        // Every face's tag is in the entry's tags too, so the plan's already made it up.
+        tagId = plan.newTag(dirPlan, tag);
+      }
+      int[] region = faceRegion(entry.getFaceRect(i), size);
+      if (region == null) {
+        continue;
+      }
+      String value = ImageTagWriter.regionValue(region[0], region[1], region[2], region[3]);
+      if (regions.add(regionKey(imageId, tagId, value))) {
+        dirPlan.newRegion();
+      } else {
+        dirPlan.existingRegion();
+      }
+      if (people.add(tagId)) {
+        dirPlan.newPerson();
+      }
+    }
+  }
+
+  private static String regionKey(int imageId, int tagId, String value) {
+    return imageId+":"+tagId+":"+value;
+  }
+
+  /**
+   * Fetches every face region already on the images in the folder indicated by `albumId`, and on
+   * `moved` (images from other folders, with --relocate).
+   * @return the regions, as regionKey() has them; empty if the query failed
+   */
+  private Set<String> fetchRegions(int albumId, List<Integer> moved) {
+    Set<String> regions = new HashSet<>();
+    fetchRegions(QUERY_FETCH_ALBUM_REGIONS, albumId, regions);
+    for (int imageId : moved) {
+      fetchRegions(QUERY_FETCH_REGIONS, imageId, regions);
+    }
+    return regions;
+  }
+
+  private void fetchRegions(String query, int id, Set<String> regions) {
+    try (PreparedStatement ps = conn.prepareStatement(query)) {
+      ps.setInt(1, id);
+      retry.run(() -> {
+        try (ResultSet res = ps.executeQuery()) {
+          while (res.next()) {
+            regions.add(regionKey(res.getInt(1), res.getInt(2), res.getString(3)));
+          }
+        }
+        return null;
+      }, false);
+    } catch (SQLException throwables) {
+      System.out.println("Failed trying to fetch existing face regions. (Is DigiKam open?)");
+      throwables.printStackTrace();
+    }
+  }
+
+  /**
+   * @return the ID of every tag DigiKam already treats as a person; empty if the query failed
+   */
+  private Set<Integer> fetchPeople() {
+    Set<Integer> tagIds = new HashSet<>();
+    try (Statement st = conn.createStatement()) {
+      retry.run(() -> {
+        try (ResultSet res = st.executeQuery(QUERY_FETCH_PEOPLE)) {
+          while (res.next()) {
+            tagIds.add(res.getInt(1));
+          }
+        }
+        return null;
+      }, false);
+    } catch (SQLException throwables) {
+      System.out.println("Failed trying to fetch DigiKam's people. (Is DigiKam open?)");
+      throwables.printStackTrace();
+    }
+    return tagIds;
+  }
+
+  /**
+   * With --relocate, looks everywhere else in the library for each image in `ini` that isn't in
+   * `imageIds`, and adds the ones it finds to `imageIds` so they get tagged where they are now.
+   * Names that match more than one image are reported and left alone.
+   * @param ini the parsed picasa.ini for the folder
+   * @param albumId the album the folder is, where the images weren't found
+   * @param imageIds DigiKam's IDs for the images in that album, by name
+   * @return the IDs of the images that were found elsewhere
+   */
+  private List<Integer> relocate(PicasaIni ini, int albumId, Map<String, Integer> imageIds) {
+    List<Integer> moved = new ArrayList<>();
+    if (relocations == null) {
+      return moved;
+    }
+    long t = metrics.start();
+    File dir = new File(ini.getIniPath()).getParentFile();
+    for (PicasaIni.Entry entry : ini.getEntries()) {
+      String name = entry.getImageName();
+      if (imageIds.containsKey(name)) {
+        continue;
+      }
+      // If there's still a copy here, its size tells apart images that share a name. length() is
+      // 0 if there isn't.
+      int imageId = relocations.find(name, albumId, new File(dir, name).length());
+      if (imageId == RelocationIndex.AMBIGUOUS) {
+        metrics.count(RunMetrics.Counter.IMAGES_AMBIGUOUS, 1);
+        System.out.println(name+" from "+dir+" matches more than one image in DigiKam, or only one of a "
+                +"different size, so it wasn't tagged.");
+      } else if (imageId != RelocationIndex.NOT_FOUND) {
+        metrics.count(RunMetrics.Counter.IMAGES_RELOCATED, 1);
+        imageIds.put(name, imageId);
+        moved.add(imageId);
+      }
+    }
+    metrics.stop(RunMetrics.Phase.RELOCATE, t);
+    return moved;
+  }
+
+  /**
+   * Queues a face region for every face in `entry`, worked out from Picasa's fractions of the
+   * image and the image's size in pixels. Images DigiKam doesn't know the size of don't get any.
+   * @param entry the image, with its faces
+   * @param imageId DigiKam's ID for the image
+   * @param dimensions image sizes for the folder, packed as width << 32 | height; images from
+   *                   other folders (with --relocate) get looked up and added
+   */
+  private void addRegions(PicasaIni.Entry entry, int imageId, Map<Integer, Long> dimensions) {
+    long size = imageSize(imageId, dimensions);
+    if (size == 0) {
+      metrics.count(RunMetrics.Counter.FACE_REGIONS_SKIPPED, entry.getFaceCount());
+      return;
+    }
+    for (int i = 0; i < entry.getFaceCount(); i++) {
+      String tag = entry.getFaceTag(i);
+      int tagId = tagDictionary.lookup(tag);
+      int[] region = faceRegion(entry.getFaceRect(i), size);
+      if (tagId == -1 || region == null) {
+        metrics.count(RunMetrics.Counter.FACE_REGIONS_SKIPPED, 1);
+        continue;
+      }
+      tagWriter.addRegion(imageId, tagId, tag.substring(tag.indexOf('/') + 1), region[0], region[1], region[2],
+              region[3]);
+      metrics.count(RunMetrics.Counter.FACE_REGIONS, 1);
+    }
+  }
+
+  /**
+   * @param dimensions image sizes for the folder; images from other folders get looked up and added
+   * @return the image's width << 32 | height, or 0 if DigiKam doesn't know it
+   */
+  private long imageSize(int imageId, Map<Integer, Long> dimensions) {
+    Long size = dimensions.get(imageId);
+    if (size == null) {
+      size = fetchDimensions(imageId, dimensions);
+    }
+    return (int) (size >>> 32) <= 0 || (int) (long) size <= 0 ? 0 : size;
+  }
+
+  /**
+   * Works out where a face is in the picture, in pixels.
+   * @param rect the face's rect64 from picasa.ini: left, top, right and bottom, each out of 65535
+   * @param size the image's width << 32 | height
+   * @return the face's x, y, width and height, or null if it comes out empty
+   */
+  private static int[] faceRegion(long rect, long size) {
+    int width = (int) (size >>> 32);
+    int height = (int) size;
+    int left = (int) Math.round(((rect >>> 48) & 0xFFFF) / 65535.0 * width);
+    int top = (int) Math.round(((rect >>> 32) & 0xFFFF) / 65535.0 * height);
+    int right = (int) Math.round(((rect >>> 16) & 0xFFFF) / 65535.0 * width);
+    int bottom = (int) Math.round((rect & 0xFFFF) / 65535.0 * height);
+    if (right <= left || bottom <= top) {
+      return null;
+    }
+    return new int[] {left, top, right - left, bottom - top};
+  }
+
+  /**
+   * Fetches the width and height of every image in the folder indicated by `albumId`.
+   * @param albumId the unique ID DigiKam has assigned to the folder we're working in
+   * @return image ID -> width << 32 | height; empty if the query failed
+   */
+  private Map<Integer, Long> fetchDimensions(int albumId) {
+    Map<Integer, Long> dimensions = new HashMap<>();
+    fetchDimensions(QUERY_FETCH_ALBUM_DIMENSIONS, albumId, dimensions);
+    return dimensions;
+  }
+
+  /**
+   * Fetches the width and height of one image, and adds it to `dimensions`.
+   * @return width << 32 | height, or 0 if DigiKam doesn't know
+   */
+  private long fetchDimensions(int imageId, Map<Integer, Long> dimensions) {
+    fetchDimensions(QUERY_FETCH_DIMENSIONS, imageId, dimensions);
+    return dimensions.computeIfAbsent(imageId, id -> 0L);
+  }
+
+  private void fetchDimensions(String query, int id, Map<Integer, Long> dimensions) {
+    try (PreparedStatement ps = conn.prepareStatement(query)) {
+      ps.setInt(1, id);
+      retry.run(() -> {
+        try (ResultSet res = ps.executeQuery()) {
+          while (res.next()) {
+            dimensions.put(res.getInt(1), (long) res.getInt(2) << 32 | (res.getInt(3) & 0xFFFFFFFFL));
+          }
+        }
+        return null;
+      }, false);
+    } catch (SQLException throwables) {
+      System.out.println("Failed trying to fetch image sizes. (Is DigiKam open?)");
+      throwables.printStackTrace();
+    }
+  }
+
+  /**
+   * Fetches every ImageTags row for the images in `imageIds`.
+   * @param imageIds DigiKam image IDs
+   * @return the (image, tag) pairs, packed by IniJournal.pack
+   */
+  private Set<Long> fetchImageTags(List<Integer> imageIds) {
+    Set<Long> links = new HashSet<>();
+    StringBuilder query = new StringBuilder("SELECT imageid, tagid FROM ImageTags WHERE imageid IN (");
+    for (int i = 0; i < imageIds.size(); i++) {
+      query.append(i == 0 ? "?" : ",?");
+    }
+    query.append(")");
+    try (PreparedStatement ps = conn.prepareStatement(query.toString())) {
+      for (int i = 0; i < imageIds.size(); i++) {
+        ps.setInt(i + 1, imageIds.get(i));
+      }
+      retry.run(() -> {
+        links.clear();
+        try (ResultSet res = ps.executeQuery()) {
+          while (res.next()) {
+            links.add(IniJournal.pack(res.getInt("imageid"), res.getInt("tagid")));
+          }
+        }
+        return null;
+      }, false);
+    } catch (SQLException throwables) {
+      System.out.println("Failed trying to fetch existing image tags. (Is DigiKam open?)");
+      throwables.printStackTrace();
+    }
+    return links;
+  }
+
+  /**
+   * Fetches every ImageTags row for images in the folder indicated by `albumId`.
+   * @param albumId the unique ID DigiKam has assigned to the folder we're working in
+   * @return the (image, tag) pairs, packed by IniJournal.pack
+   */
+  private Set<Long> fetchAlbumImageTags(int albumId) {
+    Set<Long> links = new HashSet<>();
+    try (PreparedStatement ps = conn.prepareStatement(QUERY_FETCH_ALBUM_IMAGETAGS)) {
+      ps.setInt(1, albumId);
+      retry.run(() -> {
+        links.clear();
+        try (ResultSet res = ps.executeQuery()) {
+          while (res.next()) {
+            links.add(IniJournal.pack(res.getInt("imageid"), res.getInt("tagid")));
+          }
+        }
+        return null;
+      }, false);
+    } catch (SQLException throwables) {
+      System.out.println("Failed trying to fetch existing image tags. (Is DigiKam open?)");
+      throwables.printStackTrace();
+    }
+    return links;
+  }
+
+  /**
+   * Updates the DigiKam database to tag `imageName` with every tag in `tags`. If the tag doesn't
+   * already exist, it will be created. If this image isn't present in DigiKam's data, this method
+   * does nothing and returns IMAGE_SKIPPED. If `tags` is an empty list, this method does nothing
+   * and returns IMAGE_TAGGED.
+   * @param imageName name of the file to tag
+   * @param tags a list of tags that will be applied to `imageName`
+   * @param imageIds DigiKam's IDs for every image in the folder containing `imageName`, by name
+   * @param previous pairs (packed by IniJournal.pack) a previous run already wrote from this ini
+   *                 file, which don't need writing again; each one seen is removed. May be null.
+   * @param counts where to count the image tags queued up
+   * @return IMAGE_TAGGED if the file was tagged with anything in `tags` or `tags` was empty,
+   * IMAGE_SKIPPED if DigiKam doesn't know the file, or IMAGE_FAILED if the database wouldn't let us
+   * write
+   */
+  private int tagImage(String imageName, List<String> tags, Map<String, Integer> imageIds,
+                       Set<Long> previous, DirectoryCounts counts) {
+    // Try to grab an image id- if there isn't one, DigiKam doesn't know this file, and
+    // we should skip.
+    Integer imageId = imageIds.get(imageName);
+    if (imageId == null) {
+      return IMAGE_SKIPPED;
+    }
+
+    for (String tag : tags) {
+      // Look the tag up in our copy of the Tags table; if DigiKam doesn't have it yet, it gets
+      // created.
+      long t = metrics.start();
+      int tagId = tagDictionary.lookup(tag);
+      if (tagId != -1) {
+        metrics.stop(RunMetrics.Phase.TAG_RESOLVE, t);
+      } else {
+        tagId = tagDictionary.resolve(tag);
+        metrics.stop(RunMetrics.Phase.TAG_CREATE, t);
+        if (tagId == -1) {
+          return IMAGE_FAILED;
+        }
+        metrics.count(RunMetrics.Counter.TAGS_CREATED, 1);
+      }
+
+      // A previous run already wrote this one.
+      if (previous != null && previous.remove(IniJournal.pack(imageId, tagId))) {
+        continue;
+      }
+
+      // Queue an INSERT OR IGNORE into ImageTags, just in case it's already tagged.
+      t = metrics.start();
+      boolean added = tagWriter.add(imageId, tagId);
+      metrics.stop(RunMetrics.Phase.INSERT, t);
+      if (!added) {
+        System.out.println("Failed to tag image.");
+        return IMAGE_FAILED;
+      }
+      counts.addImageTags(1);
+    }
+
+    return IMAGE_TAGGED;
+  }
+
+  /**
+   * Fetches DigiKam's unique image IDs for every file in the folder indicated by `albumId`, keyed
+   * by file name. Returns an empty map if DigiKam doesn't know about any files there (or doesn't
+   * know the folder at all), and null if the query failed, so a locked database can't pass for an
+   * empty folder.
+   * @param albumId the unique ID DigiKam has assigned to the folder we're working in
+   * @return a HashMap of <name, id> pairs for the files in this folder, or null
+   */
+  private HashMap<String, Integer> fetchImageIDs(int albumId) {
+    HashMap<String, Integer> imageIds = new HashMap<>();
+    try (PreparedStatement ps = conn.prepareStatement(QUERY_FETCH_IMAGEIDS)) {
+      ps.setInt(1, albumId);
+      retry.run(() -> {
+        imageIds.clear();
+        try (ResultSet res = ps.executeQuery()) {
+          while (res.next()) {
+            imageIds.put(res.getString("name"), res.getInt("id"));
+          }
+        }
+        return null;
+      }, false);
+    } catch (SQLException throwables) {
+      System.out.println("Failed trying to fetch image IDs. (Is DigiKam open?)");
+      throwables.printStackTrace();
+      return null;
+    }
+    return imageIds;
+  }
+
+  /**
+   * Establish SQLite DB connection.
+   * @param readOnly boolean flag, whether to open the database read-only
+   */
+  private void dbConnect(boolean readOnly) {
+    conn = null;
+    try {
+      SQLiteConfig config = new SQLiteConfig();
+      config.setReadOnly(readOnly);
+      BusyRetry.configure(config);
+      conn = DriverManager.getConnection(JDBC_AFFIX+dbDir+"/"+DB_NAME, config.toProperties());
+      System.out.println("Established connection to DigiKam database.");
+    } catch (SQLException throwables) {
+      throwables.printStackTrace();
+      System.out.println("Couldn't establish database connection.");
+      System.out.println("(Most likely, either "+DB_NAME+" wasn't found in "+dbDir+" or DigiKam is " +
+              "currently open and has locked the database.)");
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package kahla;
+
+/**
+ * What got done in one folder. KahlaCore hands a fresh one to TagSink.write() for every folder,
+ * and the sink adds to it as it goes.
+ */
+public class DirectoryCounts {
+  private int imagesTagged;
+  private int imagesSkipped;
+  private int imageTags;
+
+  /**
+   * @param n how many more images got (or would get) tagged
+   */
+  public void addImagesTagged(int n) {
+    imagesTagged += n;
+  }
+
+  /**
+   * @param n how many more images were left alone, because DigiKam doesn't have them
+   */
+  public void addImagesSkipped(int n) {
+    imagesSkipped += n;
+  }
+
+  /**
+   * @param n how many more image tags got (or would get) queued up
+   */
+  public void addImageTags(int n) {
+    imageTags += n;
+  }
+
+  public int getImagesTagged() {
+    return imagesTagged;
+  }
+
+  public int getImagesSkipped() {
+    return imagesSkipped;
+  }
+
+  public int getImageTags() {
+    return imageTags;
+  }
+}
@@ -0,0 +1,207 @@
+package kahla;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks a directory tree and hands back only the folders that have a .picasa.ini in them and that
+ * the sink (DigiKam, so far) has somewhere to put tags from. Folders are listed in the same order a depth-first walk visits them, with
+ * each folder coming before the folders inside it.
+ *
+ * The walk keeps its own stack instead of recursing, so deep trees can't overflow the Java stack.
+ * Each folder is listed once with a DirectoryStream, and each entry's attributes are read once to
+ * tell folders from files, which on Windows comes for free from the directory listing. Names
+ * aren't trusted for that: a folder can be called 'Scans.tif' as easily as anything else.
+ */
+public class DirectoryWalker implements Iterator<String> {
+  private static final String INI_NAME = ".picasa.ini";
+
+  private final TagSink sink;
+  private final Filter filter;
+  private final Path start;
+  private boolean reportSkips = true;
+
+  // Folders we still need to look in, along with how deep they are. Pushed in reverse so they pop
+  // off in listing order.
+  private final ArrayDeque<String> pendingDirs = new ArrayDeque<>();
+  private final ArrayDeque<Integer> pendingDepths = new ArrayDeque<>();
+  private String next;
+
+  /**
+   * Which folders to look at, beyond "the ones the sink wants".
+   */
+  public static class Filter {
+    private final int maxDepth;
+    private final List<PathMatcher> includes = new ArrayList<>();
+    private final List<PathMatcher> excludes = new ArrayList<>();
+
+    /**
+     * Globs are matched against each folder's path relative to the starting folder, like
+     * "2009/**" or "**&#47;Thumbnails". The starting folder itself always passes the include globs.
+     * @param maxDepth how many levels of folders to go down; 0 only looks at the starting folder
+     * @param includes globs a folder has to match for its ini file to be read; empty means everything
+     * @param excludes globs for folders to skip entirely, along with everything inside them
+     */
+    public Filter(int maxDepth, List<String> includes, List<String> excludes) {
+      this.maxDepth = maxDepth;
+      FileSystem fs = FileSystems.getDefault();
+      for (String glob : includes) {
+        this.includes.add(fs.getPathMatcher("glob:" + glob));
+      }
+      for (String glob : excludes) {
+        this.excludes.add(fs.getPathMatcher("glob:" + glob));
+      }
+    }
+
+    public int getMaxDepth() {
+      return maxDepth;
+    }
+
+    /**
+     * @param relative a folder's path relative to the starting folder
+     * @return true if the folder (and everything in it) should be skipped
+     */
+    public boolean excludes(Path relative) {
+      return matchesAny(excludes, relative);
+    }
+
+    /**
+     * @param relative a folder's path relative to the starting folder
+     * @return true if the folder's ini file should be read, as far as the include globs go
+     */
+    public boolean includes(Path relative) {
+      return includes.isEmpty() || matchesAny(includes, relative);
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path relative) {
+      for (PathMatcher m : matchers) {
+        if (m.matches(relative)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * @param startDir the folder to start in, with single forward slashes
+   * @param sink used to skip folders there's nowhere to put tags from
+   * @param filter depth and glob limits for the walk
+   */
+  public DirectoryWalker(String startDir, TagSink sink, Filter filter) {
+    this.sink = sink;
+    this.filter = filter;
+    this.start = Paths.get(startDir);
+    pendingDirs.push(startDir);
+    pendingDepths.push(0);
+  }
+
+  /**
+   * @param reportSkips whether to say so when a folder gets skipped because DigiKam ignores it
+   */
+  public void setReportSkips(boolean reportSkips) {
+    this.reportSkips = reportSkips;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      next = advance();
+    }
+    return next != null;
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    String dir = next;
+    next = null;
+    return dir;
+  }
+
+  /**
+   * Looks through pending folders until one turns out to be worth tagging.
+   * @return the next folder to tag, or null once the walk is done
+   */
+  private String advance() {
+    while (!pendingDirs.isEmpty()) {
+      String dir = pendingDirs.pop();
+      int depth = pendingDepths.pop();
+      Path relative = start.relativize(Paths.get(dir));
+      if (depth > 0 && Filter.matchesAny(filter.excludes, relative)) {
+        continue;
+      }
+
+      boolean known = sink.accepts(dir);
+      if (!known && sink.ignores(dir)) {
+        // DigiKam has been told to ignore this folder, so it won't know anything inside it either.
+        if (reportSkips) {
+          System.out.println("DigiKam doesn't know about the folder "+dir+". Skipping it and everything in it.");
+        }
+        continue;
+      }
+
+      boolean hasIni = listFolder(dir, depth);
+      if (hasIni && known && (depth == 0 || filter.includes.isEmpty()
+              || Filter.matchesAny(filter.includes, relative))) {
+        return dir;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Lists `dir`, queueing up the folders inside it (if we're allowed to go that deep).
+   * @return whether `dir` has a .picasa.ini in it
+   */
+  private boolean listFolder(String dir, int depth) {
+    boolean hasIni = false;
+    boolean descend = depth < filter.maxDepth;
+    List<String> subdirs = new ArrayList<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(dir))) {
+      for (Path entry : entries) {
+        String name = entry.getFileName().toString();
+        if (name.equals(INI_NAME)) {
+          hasIni = true;
+          continue;
+        }
+        if (!descend) {
+          continue;
+        }
+        try {
+          // Symlinks aren't followed, so a link back up the tree can't send us in circles.
+          BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                  LinkOption.NOFOLLOW_LINKS);
+          if (attrs.isDirectory()) {
+            subdirs.add(dir+"/"+name);
+          }
+        } catch (IOException e) {
+          // Vanished or unreadable; either way, nothing for us in there.
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Couldn't look inside the folder "+dir+". Skipping it.");
+      return false;
+    }
+    for (int i = subdirs.size() - 1; i >= 0; i--) {
+      pendingDirs.push(subdirs.get(i));
+      pendingDepths.push(depth + 1);
+    }
+    return hasIni;
+  }
+}
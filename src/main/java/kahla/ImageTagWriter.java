@@ -0,0 +1,356 @@
+package kahla;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Queues up ImageTags rows and writes them to DigiKam's database in batches, inside explicit
+ * transactions. With auto-commit on, every single INSERT is its own SQLite transaction (and its own
+ * trip to the disk), which is where most of a big run's time used to go.
+ *
+ * A batch is committed either when the caller says a directory is done (commitSize of 0), or every
+ * `commitSize` rows. If DigiKam has the database locked, writing the batch is retried (see
+ * BusyRetry). If a batch still fails, only that batch is rolled back, and the .picasa.ini files it
+ * came from are reported and kept so they can be tried again later.
+ *
+ * Rows are held as packed longs in a PairBuffer until the batch is written, then sorted, stripped
+ * of duplicates (with -m, lots of images get the same album or face tag twice) and written in ID
+ * order.
+ *
+ * Face regions (see addRegion()) go out in the same batch and transaction, into
+ * ImageTagProperties, and the people they're for get marked as people in TagProperties.
+ */
+public class ImageTagWriter {
+  private static final String QUERY_TAG_IMAGE = "INSERT OR IGNORE INTO ImageTags (imageid, tagid) VALUES(?, ?)";
+  // How many rows go to the driver at once while writing out a batch, so a huge batch doesn't get
+  // copied into a huge JDBC batch too.
+  private static final int ROWS_PER_STATEMENT_BATCH = 10_000;
+  // ImageTagProperties has no unique constraint, so these check first; going again (after a busy
+  // database, or on the next run) mustn't add the same region twice.
+  private static final String QUERY_ADD_REGION = "INSERT INTO ImageTagProperties (imageid, tagid, property, value) " +
+          "SELECT ?, ?, 'tagRegion', ? WHERE NOT EXISTS (SELECT 1 FROM ImageTagProperties " +
+          "WHERE imageid = ? AND tagid = ? AND property = 'tagRegion' AND value = ?)";
+  // DigiKam only treats a tag as a person (and shows its regions as faces) if it has this.
+  private static final String QUERY_MARK_PERSON = "INSERT INTO TagProperties (tagid, property, value) " +
+          "SELECT ?, 'person', ? WHERE NOT EXISTS (SELECT 1 FROM TagProperties WHERE tagid = ? AND property = 'person')";
+  // imageid, tagid, x, y, width, height
+  private static final int INTS_PER_REGION = 6;
+
+  private final Connection conn;
+  private final PreparedStatement tagImage;
+  private final int commitSize;
+  private final TagDictionary tags;
+  private final IniJournal journal;
+  private final BusyRetry retry;
+
+  private final PairBuffer pending = new PairBuffer();
+  // Face regions waiting to go out with the batch, INTS_PER_REGION ints each, and the people
+  // they're for (tag ID -> name).
+  private int[] regions = new int[INTS_PER_REGION * 16];
+  private int regionCount = 0;
+  private final Map<Integer, String> people = new LinkedHashMap<>();
+  // Only prepared once there's a region to write.
+  private PreparedStatement addRegion;
+  private PreparedStatement markPerson;
+  private int failedBatches = 0;
+  // Every ini file that has contributed rows to the current batch, for error reporting.
+  private final Set<String> sources = new LinkedHashSet<>();
+  private String currentSource;
+  // Ini files whose rows were rolled back, since the last time someone asked.
+  private final List<String> failedSources = new ArrayList<>();
+
+  /**
+   * Takes over `conn` for batched writing. This turns auto-commit off, so anything else written
+   * through `conn` (like new Tags) becomes part of the same transaction as the pending rows.
+   * @param conn an open connection to DigiKam's database
+   * @param commitSize how many rows to queue before committing, or 0 to commit once per directory
+   * @param tags the tag dictionary creating tags on `conn`, told whenever a batch commits or rolls back
+   * @param journal the journal to record written rows in, or null if we're not keeping one
+   * @throws SQLException if the connection can't be configured
+   */
+  public ImageTagWriter(Connection conn, int commitSize, TagDictionary tags, IniJournal journal)
+          throws SQLException {
+    this(conn, commitSize, tags, journal, new BusyRetry(conn, new RunMetrics()));
+  }
+
+  /**
+   * Takes over `conn` for batched writing. This turns auto-commit off, so anything else written
+   * through `conn` (like new Tags) becomes part of the same transaction as the pending rows.
+   * @param conn an open connection to DigiKam's database
+   * @param commitSize how many rows to queue before committing, or 0 to commit once per directory
+   * @param tags the tag dictionary creating tags on `conn`, told whenever a batch commits or rolls back
+   * @param journal the journal to record written rows in, or null if we're not keeping one
+   * @param retry how to wait out DigiKam when it has the database locked
+   * @throws SQLException if the connection can't be configured
+   */
+  public ImageTagWriter(Connection conn, int commitSize, TagDictionary tags, IniJournal journal,
+                        BusyRetry retry) throws SQLException {
+    this.conn = conn;
+    this.commitSize = commitSize;
+    this.tags = tags;
+    this.journal = journal;
+    this.retry = retry;
+    conn.setAutoCommit(false);
+    tagImage = conn.prepareStatement(QUERY_TAG_IMAGE);
+  }
+
+  /**
+   * Marks the .picasa.ini file that the following rows come from.
+   * @param iniPath path to the ini file being processed
+   */
+  public void beginSource(String iniPath) {
+    currentSource = iniPath;
+  }
+
+  /**
+   * Queues an ImageTags row. If that fills up the batch, it gets written right away.
+   * @param imageId DigiKam's ID for the image
+   * @param tagId DigiKam's ID for the tag
+   * @return false if queueing the row (or the batch it completed) failed, true otherwise
+   */
+  public boolean add(int imageId, int tagId) {
+    if (journal != null) {
+      try {
+        journal.addPair(currentSource, imageId, tagId);
+      } catch (SQLException throwables) {
+        System.out.println("Failed to queue tag for writing.");
+        throwables.printStackTrace();
+        return false;
+      }
+    }
+    pending.add(imageId, tagId);
+    if (currentSource != null) {
+      sources.add(currentSource);
+    }
+    if (commitSize > 0 && pending.size() >= commitSize) {
+      return flush();
+    }
+    return true;
+  }
+
+  /**
+   * Queues a face region, to be written with the rest of the batch. The person's ImageTags row
+   * should be queued with add() too.
+   * @param imageId DigiKam's ID for the image
+   * @param tagId DigiKam's ID for the person's tag
+   * @param person the person's name, for marking the tag as a person
+   * @param x left edge of the face, in pixels
+   * @param y top edge of the face, in pixels
+   * @param width width of the face, in pixels
+   * @param height height of the face, in pixels
+   */
+  public void addRegion(int imageId, int tagId, String person, int x, int y, int width, int height) {
+    if ((regionCount + 1) * INTS_PER_REGION > regions.length) {
+      regions = Arrays.copyOf(regions, regions.length * 2);
+    }
+    int r = regionCount * INTS_PER_REGION;
+    regions[r] = imageId;
+    regions[r + 1] = tagId;
+    regions[r + 2] = x;
+    regions[r + 3] = y;
+    regions[r + 4] = width;
+    regions[r + 5] = height;
+    regionCount++;
+    people.putIfAbsent(tagId, person);
+  }
+
+  /**
+   * @return the same XML DigiKam writes for a region, as it goes in ImageTagProperties
+   */
+  static String regionValue(int x, int y, int width, int height) {
+    return "<rect x=\""+x+"\" y=\""+y+"\" width=\""+width+"\" height=\""+height+"\"/>";
+  }
+
+  /**
+   * Queues a note in the journal that the current ini file no longer produces `pair`.
+   * @param pair an (image, tag) pair as packed by IniJournal.pack
+   * @return false if it couldn't be queued
+   */
+  public boolean forget(long pair) {
+    try {
+      journal.removePair(currentSource, pair);
+      return true;
+    } catch (SQLException throwables) {
+      System.out.println("Failed to update the journal.");
+      throwables.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Queues a note in the journal that we're done with `ini`, so the next run can skip it if it
+   * doesn't change. This goes in the same batch as the file's last rows.
+   * @param ini the ini file we just finished
+   * @return false if it couldn't be queued
+   */
+  public boolean finishSource(PicasaIni ini) {
+    try {
+      journal.finishFile(ini.getIniPath(), ini.getSize(), ini.getModified(), ini.getHash());
+      return true;
+    } catch (SQLException throwables) {
+      System.out.println("Failed to update the journal.");
+      throwables.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Ends the current directory. When committing once per directory, this writes the batch;
+   * otherwise rows keep piling up until the batch is full.
+   * @return false if a batch was written and failed, true otherwise
+   */
+  public boolean endSource() {
+    currentSource = null;
+    if (commitSize <= 0) {
+      return flush();
+    }
+    return true;
+  }
+
+  /**
+   * Writes and commits everything queued so far. On failure the whole batch is rolled back, so
+   * nothing from it ends up half-written.
+   * @return true if the batch was committed, false if it was rolled back
+   */
+  public boolean flush() {
+    int rows = pending.size();
+    try {
+      int distinct = pending.sortAndDedupe();
+      // Every row is INSERT OR IGNORE, so if the database turns out to be busy partway through, the
+      // whole lot can just go again. If there are no new tags in this transaction, it hasn't
+      // written anything before this, and can be started over.
+      retry.run(() -> writePending(distinct), !tags.hasUncommitted());
+      if (journal != null) {
+        journal.executeBatch();
+      }
+      retry.run(() -> {
+        conn.commit();
+        return null;
+      }, false);
+      tags.commit();
+      if (journal != null) {
+        journal.commit();
+      }
+      return true;
+    } catch (SQLException throwables) {
+      System.out.println("Failed to write a batch of " + rows + " tags. Rolling it back. " +
+              "(Is DigiKam open?)");
+      System.out.println("The batch came from: " + String.join(", ", sources));
+      throwables.printStackTrace();
+      failedBatches++;
+      failedSources.addAll(sources);
+      try {
+        tagImage.clearBatch();
+        if (addRegion != null) {
+          addRegion.clearBatch();
+          markPerson.clearBatch();
+        }
+        conn.rollback();
+      } catch (SQLException e) {
+        System.out.println("Rollback failed too; the database may need to be restored from backup.");
+        e.printStackTrace();
+      }
+      // Any tags created in this batch are gone now too.
+      tags.rollback();
+      if (journal != null) {
+        journal.rollback();
+      }
+      return false;
+    } finally {
+      pending.clear();
+      regionCount = 0;
+      people.clear();
+      sources.clear();
+    }
+  }
+
+  private Void writePending(int distinct) throws SQLException {
+    tagImage.clearBatch();
+    for (int i = 0; i < distinct; i++) {
+      tagImage.setInt(1, pending.imageId(i));
+      tagImage.setInt(2, pending.tagId(i));
+      tagImage.addBatch();
+      if ((i + 1) % ROWS_PER_STATEMENT_BATCH == 0) {
+        tagImage.executeBatch();
+      }
+    }
+    tagImage.executeBatch();
+    if (regionCount > 0) {
+      writeRegions();
+    }
+    return null;
+  }
+
+  private void writeRegions() throws SQLException {
+    if (addRegion == null) {
+      addRegion = conn.prepareStatement(QUERY_ADD_REGION);
+      markPerson = conn.prepareStatement(QUERY_MARK_PERSON);
+    }
+    addRegion.clearBatch();
+    for (int i = 0; i < regionCount; i++) {
+      int r = i * INTS_PER_REGION;
+      String rect = regionValue(regions[r + 2], regions[r + 3], regions[r + 4], regions[r + 5]);
+      addRegion.setInt(1, regions[r]);
+      addRegion.setInt(2, regions[r + 1]);
+      addRegion.setString(3, rect);
+      addRegion.setInt(4, regions[r]);
+      addRegion.setInt(5, regions[r + 1]);
+      addRegion.setString(6, rect);
+      addRegion.addBatch();
+    }
+    addRegion.executeBatch();
+    markPerson.clearBatch();
+    for (Map.Entry<Integer, String> person : people.entrySet()) {
+      markPerson.setInt(1, person.getKey());
+      markPerson.setString(2, person.getValue());
+      markPerson.setInt(3, person.getKey());
+      markPerson.addBatch();
+    }
+    markPerson.executeBatch();
+  }
+
+  /**
+   * @return the ini files whose rows have been rolled back since the last call, in the order they
+   * were first written
+   */
+  public List<String> takeFailedSources() {
+    List<String> failed = new ArrayList<>(failedSources);
+    failedSources.clear();
+    return failed;
+  }
+
+  /**
+   * @return how many batches have failed and been rolled back so far
+   */
+  public int getFailedBatches() {
+    return failedBatches;
+  }
+
+  /**
+   * Writes anything still queued and releases the statement. The connection is left open and
+   * handed back in auto-commit mode.
+   * @return true if the final batch was committed
+   */
+  public boolean close() {
+    boolean ok = flush();
+    try {
+      tagImage.close();
+      if (addRegion != null) {
+        addRegion.close();
+        markPerson.close();
+      }
+      conn.setAutoCommit(true);
+    } catch (SQLException throwables) {
+      throwables.printStackTrace();
+    }
+    return ok;
+  }
+}
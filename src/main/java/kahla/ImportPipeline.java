@@ -0,0 +1,140 @@
+package kahla;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Runs an import with the slow part (reading ini files off disk, which on a NAS is mostly waiting)
+ * spread over a pool of worker threads, while all the database work stays on the calling thread.
+ * SQLite only really wants one writer anyway.
+ *
+ * One thread walks the directory tree and hands each directory to the pool to be parsed. The
+ * pending results go through a bounded queue in the same order the serial walk would visit them,
+ * and the writer takes them off the front. That keeps the output (down to which tag gets which ID)
+ * identical to a single-threaded run. When the queue is full, the walker waits for the writer to
+ * catch up, so memory doesn't balloon on a huge tree.
+ */
+public class ImportPipeline {
+  // How many parsed-but-unwritten directories we allow per worker thread before the walk pauses.
+  private static final int QUEUE_SLOTS_PER_THREAD = 16;
+
+  private final int threads;
+
+  /**
+   * @param threads how many threads to read and parse ini files with
+   */
+  public ImportPipeline(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * A parsed directory waiting to be written.
+   */
+  private static class PendingDirectory {
+    private final String dir;
+    private final Future<PicasaIni> ini;
+
+    PendingDirectory(String dir, Future<PicasaIni> ini) {
+      this.dir = dir;
+      this.ini = ini;
+    }
+  }
+
+  // Put on the queue once the walk is finished.
+  private static final PendingDirectory END_OF_WALK = new PendingDirectory(null, null);
+
+  /**
+   * Imports every directory `dirs` hands back. Blocks until every directory has been written.
+   * @param dirs the directories to import, in the order they should be written
+   * @param reader reads a directory's tags; called on the worker threads
+   * @param writer what to do with each parsed directory; always called on this thread
+   */
+  public void run(Iterator<String> dirs, Function<String, PicasaIni> reader,
+                  BiConsumer<String, PicasaIni> writer) {
+    ExecutorService parsers = Executors.newFixedThreadPool(threads);
+    BlockingQueue<PendingDirectory> queue = new ArrayBlockingQueue<>(threads * QUEUE_SLOTS_PER_THREAD);
+    // If the walk dies, this is how the writer finds out.
+    Throwable[] walkFailure = new Throwable[1];
+
+    Thread walker = new Thread(() -> {
+      try {
+        walk(dirs, reader, parsers, queue);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        walkFailure[0] = e;
+      } finally {
+        try {
+          queue.put(END_OF_WALK);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "kahla-walker");
+    // Don't let a stuck walker keep the JVM alive if the writer bails out.
+    walker.setDaemon(true);
+    walker.start();
+
+    try {
+      write(queue, writer);
+      walker.join();
+    } catch (InterruptedException e) {
+      walker.interrupt();
+      Thread.currentThread().interrupt();
+    } finally {
+      // Only does anything if the writer stopped early; the walk might be waiting on the queue.
+      walker.interrupt();
+      parsers.shutdownNow();
+    }
+    if (walkFailure[0] != null) {
+      System.out.println("Stopped walking the file system early:");
+      walkFailure[0].printStackTrace();
+    }
+  }
+
+  /**
+   * Walks the tree in the same order as a serial run, queueing up a parse job for each directory.
+   */
+  private void walk(Iterator<String> dirs, Function<String, PicasaIni> reader, ExecutorService parsers,
+                    BlockingQueue<PendingDirectory> queue) throws InterruptedException {
+    while (dirs.hasNext()) {
+      String currentDir = dirs.next();
+      Future<PicasaIni> ini = parsers.submit(() -> reader.apply(currentDir));
+      // This blocks if the writer is falling behind.
+      queue.put(new PendingDirectory(currentDir, ini));
+    }
+  }
+
+  /**
+   * Takes parsed directories off the queue in order and writes them, until the walk is done.
+   */
+  private void write(BlockingQueue<PendingDirectory> queue, BiConsumer<String, PicasaIni> writer)
+          throws InterruptedException {
+    PendingDirectory next = queue.take();
+    while (next != END_OF_WALK) {
+      PicasaIni ini;
+      try {
+        ini = next.ini.get();
+      } catch (ExecutionException e) {
+        // The reader handles files it can't read itself, so this is a bug; stop the same way a
+        // run without threads would.
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+      writer.accept(next.dir, ini);
+      next = queue.take();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package kahla;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a run did, for whoever started it. The console gets told all of this along the way; this is
+ * the same thing in a form code can use.
+ */
+public class ImportResult {
+  private final boolean opened;
+  private final boolean clean;
+  private final List<String> failedDirectories;
+  private final RunMetrics metrics;
+  private final long elapsedMillis;
+
+  /**
+   * @param opened false if the run never got going because the sink couldn't be opened
+   * @param clean true if everything was written without any failures
+   * @param failedDirectories folders that still couldn't be written after being retried
+   * @param metrics everything counted and timed during the run
+   */
+  public ImportResult(boolean opened, boolean clean, List<String> failedDirectories, RunMetrics metrics) {
+    this.opened = opened;
+    this.clean = clean;
+    this.failedDirectories = Collections.unmodifiableList(failedDirectories);
+    this.metrics = metrics;
+    this.elapsedMillis = metrics.elapsedNanos() / 1_000_000;
+  }
+
+  /**
+   * @return false if nothing was done at all, because the sink couldn't be opened
+   */
+  public boolean isOpened() {
+    return opened;
+  }
+
+  /**
+   * @return true if the run finished and everything was written
+   */
+  public boolean isClean() {
+    return opened && clean && failedDirectories.isEmpty();
+  }
+
+  /**
+   * @return folders that couldn't be written even on a second go, in the order they were found
+   */
+  public List<String> getFailedDirectories() {
+    return failedDirectories;
+  }
+
+  public long getDirectories() {
+    return metrics.get(RunMetrics.Counter.DIRECTORIES);
+  }
+
+  public long getDirectoriesUnchanged() {
+    return metrics.get(RunMetrics.Counter.DIRECTORIES_UNCHANGED);
+  }
+
+  public long getImagesTagged() {
+    return metrics.get(RunMetrics.Counter.IMAGES_TAGGED);
+  }
+
+  public long getImagesSkipped() {
+    return metrics.get(RunMetrics.Counter.IMAGES_SKIPPED);
+  }
+
+  public long getImageTags() {
+    return metrics.get(RunMetrics.Counter.IMAGE_TAGS);
+  }
+
+  public long getTagsCreated() {
+    return metrics.get(RunMetrics.Counter.TAGS_CREATED);
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  /**
+   * @return any of the run's counts, for anything not covered above
+   */
+  public long getCount(RunMetrics.Counter counter) {
+    return metrics.get(counter);
+  }
+
+  /**
+   * @return the total time spent in one step of the run, in nanoseconds
+   */
+  public long getTotalNanos(RunMetrics.Phase phase) {
+    return metrics.totalNanos(phase);
+  }
+
+  /**
+   * Writes every count and timing from the run to `path` as JSON, same as --metrics.
+   * @throws IOException if the file can't be written
+   */
+  public void writeMetrics(String path) throws IOException {
+    metrics.write(path);
+  }
+}
@@ -0,0 +1,152 @@
+package kahla;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parsed picasa.ini files, kept for the other jobs in a --manifest that read the same folders
+ * (the family photos folder going into everyone's DigiKam, say). Each file is parsed once, by
+ * whichever job gets to it first; a job that asks while it's still being parsed waits for that
+ * instead of parsing it again. A file that's changed since it was parsed (going by its size and
+ * modification time) is parsed again.
+ *
+ * Only files that jobs on more than one database can reach are kept, and each one is let go of as
+ * soon as a job for every one of those databases has had it, so memory goes with how much the
+ * jobs overlap, not with how big the libraries are. Jobs on the same database take turns, so a
+ * later one never holds on to anything for itself; it just uses whatever's still there. (A job
+ * whose --include/--exclude or --max-depth keeps it out of a folder still counts as reaching it;
+ * those files are let go of when the jobs finish instead.)
+ *
+ * Files are kept as parsed, before their album and face tokens are swapped for names, so each job
+ * still resolves them against its own TokenRegistry. Every job sharing a cache has to have the
+ * same -m setting, though. Files are always parsed with their hash, whether or not a journal wants
+ * it, so one copy suits everybody.
+ *
+ * Everything is dropped once the last job using the cache says it's done with it.
+ */
+public class IniCache {
+  private final ConcurrentHashMap<String, Cached> files = new ConcurrentHashMap<>();
+  private final AtomicInteger users;
+  // Every sharing job's image folder and database, to tell which databases can reach a file.
+  private final List<Path> roots = new ArrayList<>();
+  private final List<String> databases = new ArrayList<>();
+
+  private static class Cached {
+    private final long size;
+    private final long modified;
+    private final CompletableFuture<PicasaIni> ini = new CompletableFuture<>();
+    // Databases that can reach the file and no job for which has had it yet.
+    private final Set<String> waiting = ConcurrentHashMap.newKeySet();
+
+    Cached(long size, long modified, Set<String> waiting) {
+      this.size = size;
+      this.modified = modified;
+      this.waiting.addAll(waiting);
+    }
+  }
+
+  /**
+   * @param users how many jobs are going to use the cache; it's emptied after that many release()s
+   */
+  public IniCache(int users) {
+    this.users = new AtomicInteger(users);
+  }
+
+  /**
+   * Says a job using the cache reads `imageDir` into `database`. Call it for every one of them
+   * before any of them start.
+   * @param imageDir the job's image folder
+   * @param database anything that's the same for jobs on the same database, and only for those
+   */
+  public void addReader(String imageDir, String database) {
+    roots.add(Paths.get(imageDir).toAbsolutePath().normalize());
+    databases.add(database);
+  }
+
+  /**
+   * Hands back the parsed `f`, parsing it first if nobody has yet. Safe to call from any thread.
+   * @param f a picasa.ini file
+   * @param database the asking job's database, same as it was given to addReader()
+   * @param tagPMeta boolean flag, whether to tag files with associated Picasa albums and face tags
+   * @param metrics where to count files that didn't need parsing
+   * @return the parsed file, still to be resolved; don't change it, other jobs are using it too
+   * @throws FileNotFoundException if there's no such file
+   */
+  public PicasaIni parse(File f, String database, boolean tagPMeta, RunMetrics metrics)
+          throws FileNotFoundException {
+    Set<String> readers = readers(f);
+    if (readers.size() < 2) {
+      // Nobody else is going to ask for this one.
+      return PicasaIniParser.parseUnresolved(f, tagPMeta, true);
+    }
+    String path = f.getPath();
+    long size = f.length();
+    long modified = f.lastModified();
+    Cached fresh = new Cached(size, modified, readers);
+    Cached cached = files.compute(path, (k, old) ->
+            old != null && old.size == size && old.modified == modified ? old : fresh);
+    if (cached != fresh) {
+      PicasaIni ini = cached.ini.join();
+      if (ini == null) {
+        throw new FileNotFoundException(path);
+      }
+      metrics.count(RunMetrics.Counter.INI_CACHE_HITS, 1);
+      read(path, cached, database);
+      return ini;
+    }
+    try {
+      PicasaIni ini = PicasaIniParser.parseUnresolved(f, tagPMeta, true);
+      fresh.ini.complete(ini);
+      read(path, fresh, database);
+      return ini;
+    } catch (FileNotFoundException | RuntimeException e) {
+      // Anyone waiting on this gets told it's not there, and the next one to ask tries again.
+      files.remove(path, fresh);
+      fresh.ini.complete(null);
+      throw e;
+    }
+  }
+
+  /**
+   * @return the databases of every sharing job with `f` somewhere under its image folder
+   */
+  private Set<String> readers(File f) {
+    Path path = f.toPath().toAbsolutePath().normalize();
+    Set<String> readers = new HashSet<>();
+    for (int i = 0; i < roots.size(); i++) {
+      if (path.startsWith(roots.get(i))) {
+        readers.add(databases.get(i));
+      }
+    }
+    return readers;
+  }
+
+  /**
+   * Notes that a job for `database` has had `cached`, and lets go of it if that was the last
+   * database waiting for it.
+   */
+  private void read(String path, Cached cached, String database) {
+    cached.waiting.remove(database);
+    if (cached.waiting.isEmpty()) {
+      files.remove(path, cached);
+    }
+  }
+
+  /**
+   * Says one job is done with the cache. Once they all are, everything in it is let go of.
+   */
+  public void release() {
+    if (users.decrementAndGet() <= 0) {
+      files.clear();
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package kahla;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers what previous runs did, so re-running after a few Picasa edits doesn't redo everything.
+ * The journal is a small SQLite file kept next to digikam4.db. For every .picasa.ini we've finished,
+ * it records the file's size, modification time and content hash, plus every (image, tag) pair the
+ * file produced.
+ *
+ * The journal is attached to the same connection as DigiKam's database, so its rows are committed
+ * in the same transaction as the ImageTags rows they describe. If a run is interrupted, the journal
+ * never claims more than what actually made it into DigiKam, and the next run picks up from there.
+ */
+public class IniJournal {
+  public static final String JOURNAL_NAME = "kahla-journal.db";
+
+  private static final String SCHEMA = "kahla_journal";
+  private static final String QUERY_CREATE_FILES = "CREATE TABLE IF NOT EXISTS " + SCHEMA + ".IniFiles "
+          + "(path TEXT PRIMARY KEY, size INTEGER NOT NULL, modified INTEGER NOT NULL, hash TEXT NOT NULL)";
+  private static final String QUERY_CREATE_PAIRS = "CREATE TABLE IF NOT EXISTS " + SCHEMA + ".IniPairs "
+          + "(path TEXT NOT NULL, imageid INTEGER NOT NULL, tagid INTEGER NOT NULL, "
+          + "PRIMARY KEY (path, imageid, tagid)) WITHOUT ROWID";
+  private static final String QUERY_LOAD_FILES = "SELECT path, size, modified, hash FROM " + SCHEMA + ".IniFiles";
+  private static final String QUERY_FETCH_PAIRS = "SELECT imageid, tagid FROM " + SCHEMA + ".IniPairs WHERE path = ?";
+  private static final String QUERY_ADD_PAIR = "INSERT OR IGNORE INTO " + SCHEMA + ".IniPairs (path, imageid, tagid) VALUES (?, ?, ?)";
+  private static final String QUERY_REMOVE_PAIR = "DELETE FROM " + SCHEMA + ".IniPairs WHERE path = ? AND imageid = ? AND tagid = ?";
+  private static final String QUERY_SAVE_FILE = "INSERT OR REPLACE INTO " + SCHEMA + ".IniFiles (path, size, modified, hash) VALUES (?, ?, ?, ?)";
+
+  private final PreparedStatement fetchPairs;
+  private final PreparedStatement addPair;
+  private final PreparedStatement removePair;
+  private final PreparedStatement saveFile;
+
+  // Every finished ini file, by path. Worker threads read this to decide whether a file needs
+  // parsing at all, so it has to be safe to share.
+  private final Map<String, FileState> files = new ConcurrentHashMap<>();
+  // Files finished since the last commit; they only go into `files` once the commit succeeds.
+  private final List<FileState> uncommitted = new ArrayList<>();
+
+  /**
+   * What we knew about an ini file the last time we finished it.
+   */
+  public static class FileState {
+    private final String path;
+    private final long size;
+    private final long modified;
+    private final String hash;
+
+    public FileState(String path, long size, long modified, String hash) {
+      this.path = path;
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+  }
+
+  /**
+   * Opens (or creates) the journal at `journalPath` and attaches it to `conn`.
+   * @param conn an open connection to DigiKam's database, not in the middle of a transaction
+   * @param journalPath where the journal file lives
+   * @throws SQLException if the journal can't be opened or read
+   */
+  public IniJournal(Connection conn, String journalPath) throws SQLException {
+    try (PreparedStatement attach = conn.prepareStatement("ATTACH DATABASE ? AS " + SCHEMA)) {
+      attach.setString(1, journalPath);
+      attach.execute();
+    }
+    try (Statement st = conn.createStatement()) {
+      st.execute(QUERY_CREATE_FILES);
+      st.execute(QUERY_CREATE_PAIRS);
+      try (ResultSet res = st.executeQuery(QUERY_LOAD_FILES)) {
+        while (res.next()) {
+          String path = res.getString("path");
+          files.put(path, new FileState(path, res.getLong("size"), res.getLong("modified"),
+                  res.getString("hash")));
+        }
+      }
+    }
+    fetchPairs = conn.prepareStatement(QUERY_FETCH_PAIRS);
+    addPair = conn.prepareStatement(QUERY_ADD_PAIR);
+    removePair = conn.prepareStatement(QUERY_REMOVE_PAIR);
+    saveFile = conn.prepareStatement(QUERY_SAVE_FILE);
+  }
+
+  /**
+   * Checks whether the ini file at `path` looks exactly like it did when we last finished it,
+   * going by size and modification time. Safe to call from any thread.
+   * @return true if the file can be skipped without reading it
+   */
+  public boolean isUnchanged(String path, long size, long modified) {
+    FileState state = files.get(path);
+    return state != null && state.size == size && state.modified == modified;
+  }
+
+  /**
+   * @return what we knew about the ini file at `path` last time, or null if we've never finished it
+   */
+  public FileState lookup(String path) {
+    return files.get(path);
+  }
+
+  /**
+   * Fetches every (image, tag) pair the ini file at `path` has produced so far, packed into longs
+   * with the image ID in the high half.
+   * @param path the ini file
+   * @return the pairs already written for it; empty if there are none
+   */
+  public Set<Long> fetchPairs(String path) {
+    Set<Long> pairs = new HashSet<>();
+    try {
+      fetchPairs.setString(1, path);
+      try (ResultSet res = fetchPairs.executeQuery()) {
+        while (res.next()) {
+          pairs.add(pack(res.getInt("imageid"), res.getInt("tagid")));
+        }
+      }
+    } catch (SQLException throwables) {
+      // Worst case, we re-write some rows INSERT OR IGNORE will throw out anyway.
+      System.out.println("Couldn't read the journal for "+path+"; re-tagging all of it.");
+      throwables.printStackTrace();
+    }
+    return pairs;
+  }
+
+  /**
+   * Packs an (image, tag) pair into one long, image ID in the high half.
+   */
+  public static long pack(int imageId, int tagId) {
+    return ((long) imageId << 32) | (tagId & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Queues a record that the ini file at `path` produced this (image, tag) pair. It's written with
+   * the next batch.
+   */
+  public void addPair(String path, int imageId, int tagId) throws SQLException {
+    addPair.setString(1, path);
+    addPair.setInt(2, imageId);
+    addPair.setInt(3, tagId);
+    addPair.addBatch();
+  }
+
+  /**
+   * Queues forgetting a pair the ini file at `path` doesn't produce anymore. The tag itself stays
+   * on the image in DigiKam; this only stops the journal from claiming it came from `path`.
+   */
+  public void removePair(String path, long pair) throws SQLException {
+    removePair.setString(1, path);
+    removePair.setInt(2, (int) (pair >>> 32));
+    removePair.setInt(3, (int) pair);
+    removePair.addBatch();
+  }
+
+  /**
+   * Queues a record that we've finished the ini file at `path`. Until this is committed, the next
+   * run will look at the file again.
+   */
+  public void finishFile(String path, long size, long modified, String hash) throws SQLException {
+    saveFile.setString(1, path);
+    saveFile.setLong(2, size);
+    saveFile.setLong(3, modified);
+    saveFile.setString(4, hash);
+    saveFile.addBatch();
+    uncommitted.add(new FileState(path, size, modified, hash));
+  }
+
+  /**
+   * Writes everything queued. Call right before committing.
+   */
+  public void executeBatch() throws SQLException {
+    addPair.executeBatch();
+    removePair.executeBatch();
+    saveFile.executeBatch();
+  }
+
+  /**
+   * Call once the transaction the queued records went into has been committed.
+   */
+  public void commit() {
+    for (FileState state : uncommitted) {
+      files.put(state.path, state);
+    }
+    uncommitted.clear();
+  }
+
+  /**
+   * Call if the transaction the queued records went into has been rolled back.
+   */
+  public void rollback() {
+    try {
+      addPair.clearBatch();
+      removePair.clearBatch();
+      saveFile.clearBatch();
+    } catch (SQLException throwables) {
+      throwables.printStackTrace();
+    }
+    uncommitted.clear();
+  }
+
+  /**
+   * Releases the prepared statements.
+   */
+  public void close() {
+    try {
+      fetchPairs.close();
+      addPair.close();
+      removePair.close();
+      saveFile.close();
+    } catch (SQLException throwables) {
+      throwables.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package kahla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an eye on every folder under the image directory and says which ones have had their
+ * .picasa.ini written to, for --watch.
+ *
+ * Java's WatchService only watches one folder per registration, so every folder in the tree gets
+ * registered (DigiKam-ignored and excluded folders aren't, same as the walk). Nothing else is kept
+ * per folder: each WatchKey already knows which folder it belongs to. While nothing's happening
+ * take() just blocks, so an idle watcher costs nothing but the registrations.
+ *
+ * Picasa tends to write a file several times in a row (and usually every other file in the folder
+ * while it's at it), so changes are collected until things have been quiet for a moment and then
+ * handed back all at once, each folder only once.
+ */
+public class IniWatcher implements Closeable {
+  private static final String INI_NAME = ".picasa.ini";
+  // However busy things stay, hand back what we've got after this many debounce periods.
+  private static final long MAX_DEBOUNCE_WAITS = 20;
+
+  private final Path start;
+  private final DirectoryWalker.Filter filter;
+  private final TagSink sink;
+  private final WatchService watcher;
+  private int watched = 0;
+  private boolean reportedLimit = false;
+
+  /**
+   * Registers every folder under `startDir` that a walk would look in.
+   * @param startDir the folder to watch, with single forward slashes
+   * @param filter depth and glob limits, same as the walk's
+   * @param sink used to skip folders there's nowhere to put tags from
+   * @throws IOException if the file system can't be watched at all
+   */
+  public IniWatcher(String startDir, DirectoryWalker.Filter filter, TagSink sink) throws IOException {
+    this.start = Paths.get(startDir);
+    this.filter = filter;
+    this.sink = sink;
+    this.watcher = FileSystems.getDefault().newWatchService();
+    registerTree(start, null);
+  }
+
+  /**
+   * @return how many folders are being watched
+   */
+  public int getWatched() {
+    return watched;
+  }
+
+  /**
+   * Waits for at least one .picasa.ini to change, then keeps collecting changes until there
+   * haven't been any for `debounceMillis`.
+   * @param debounceMillis how long things have to stay quiet before the changes are handed back
+   * @param timeoutMillis how long to wait for the first change, or -1 to wait as long as it takes
+   * @return every folder whose .picasa.ini was created or changed, with single forward slashes;
+   * empty if `timeoutMillis` ran out first
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public Set<String> take(long debounceMillis, long timeoutMillis) throws InterruptedException {
+    Set<String> changed = new LinkedHashSet<>();
+    try {
+      WatchKey key = waitForKey(timeoutMillis);
+      long deadline = 0;
+      while (key != null) {
+        handle(key, changed);
+        // Nothing to hand back yet (just image files changing, say) means nothing to debounce.
+        if (changed.isEmpty()) {
+          key = waitForKey(timeoutMillis);
+          continue;
+        }
+        if (deadline == 0) {
+          deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(debounceMillis * MAX_DEBOUNCE_WAITS);
+        } else if (System.nanoTime() - deadline > 0) {
+          break;
+        }
+        key = watcher.poll(debounceMillis, TimeUnit.MILLISECONDS);
+      }
+    } catch (ClosedWatchServiceException e) {
+      // Closed from another thread; hand back whatever we have.
+    }
+    return changed;
+  }
+
+  private WatchKey waitForKey(long timeoutMillis) throws InterruptedException {
+    return timeoutMillis < 0 ? watcher.take() : watcher.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void close() throws IOException {
+    watcher.close();
+  }
+
+  /**
+   * Goes through everything `key` has seen: notes down .picasa.ini changes, and starts watching
+   * any new folders (including any .picasa.ini already in them).
+   */
+  private void handle(WatchKey key, Set<String> changed) {
+    Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Some events were lost; the one thing we can still do is look at this folder's ini.
+        addIfIni(dir, changed);
+        continue;
+      }
+      Path name = (Path) event.context();
+      String fileName = name.toString();
+      if (fileName.equals(INI_NAME)) {
+        addChanged(dir, changed);
+      } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+        Path child = dir.resolve(name);
+        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+          registerTree(child, changed);
+        }
+      }
+    }
+    if (!key.reset()) {
+      // The folder's gone.
+      watched--;
+    }
+  }
+
+  /**
+   * Registers `root` and every folder under it that a walk would look in. Folders that have just
+   * been created are all registered, even ones DigiKam doesn't know about, since it most likely
+   * just hasn't scanned them yet.
+   * @param changed if not null, `root` is new, and every folder found with a .picasa.ini already in
+   *                it gets added
+   */
+  private void registerTree(Path root, Set<String> changed) {
+    ArrayDeque<Path> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Path dir = pending.pop();
+      Path relative = start.relativize(dir);
+      int depth = dir.equals(start) ? 0 : relative.getNameCount();
+      String directory = toDirectory(dir);
+      if (depth > filter.getMaxDepth() || (depth > 0 && filter.excludes(relative))
+              || (changed == null && !sink.accepts(directory) && sink.ignores(directory))) {
+        continue;
+      }
+      try {
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watched++;
+      } catch (IOException e) {
+        // Most likely the OS's limit on watches (fs.inotify.max_user_watches on Linux).
+        if (!reportedLimit) {
+          System.out.println("Couldn't watch "+directory+" ("+e.getMessage()+"). Changes in it, and in " +
+                  "any other folder that can't be watched, won't be picked up.");
+          reportedLimit = true;
+        }
+        continue;
+      }
+      if (changed != null) {
+        addIfIni(dir, changed);
+      }
+      if (depth == filter.getMaxDepth()) {
+        continue;
+      }
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+        for (Path entry : entries) {
+          if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+            pending.push(entry);
+          }
+        }
+      } catch (IOException e) {
+        // Vanished or unreadable; either way, nothing for us in there.
+      }
+    }
+  }
+
+  private void addIfIni(Path dir, Set<String> changed) {
+    if (Files.exists(dir.resolve(INI_NAME))) {
+      addChanged(dir, changed);
+    }
+  }
+
+  /**
+   * Adds `dir` to `changed`, if the include globs (if any) let it be tagged.
+   */
+  private void addChanged(Path dir, Set<String> changed) {
+    if (dir.equals(start) || filter.includes(start.relativize(dir))) {
+      changed.add(toDirectory(dir));
+    }
+  }
+
+  /**
+   * @return `dir` the way the walk hands folders out, with single forward slashes
+   */
+  private static String toDirectory(Path dir) {
+    return dir.toString().replace('\\', '/');
+  }
+}
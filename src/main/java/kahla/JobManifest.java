@@ -0,0 +1,571 @@
+package kahla;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of imports to run one after another (or side by side), read from a --manifest file, so a
+ * whole household's worth of libraries can be moved over in one go without anyone at the keyboard.
+ *
+ * The file can be CSV (a header row naming the settings, then one job per row) or JSON (an array of
+ * objects, or an object with a "jobs" array), going by its extension. Something like:
+ *
+ * {"jobs": [
+ *   {"name": "alice", "imageDir": "X:/Users/alice/Pictures", "dbDir": "X:/Users/alice/digikam",
+ *    "recursive": true}
+ * ]}
+ *
+ * YAML isn't read. Without a real YAML parser to lean on, anything past a flat list of maps
+ * (nested lists, block scalars, anchors) would get misread, so it's turned away instead.
+ *
+ * Every job starts out with whatever was given on the command line, and the file only has to say
+ * what's different.
+ */
+public class JobManifest {
+  private JobManifest() {
+  }
+
+  /**
+   * One import: which images go into which database, and how.
+   */
+  public static class Job {
+    private String name;
+    private String imageDir;
+    private String dbDir;
+    private boolean recursive;
+    private Integer maxDepth;
+    private List<String> includes = new ArrayList<>();
+    private List<String> excludes = new ArrayList<>();
+    private boolean tagPMeta;
+    private String picasaDb;
+    private boolean useJournal;
+    private boolean relocate;
+    private boolean faceRegions;
+    private boolean bulkLoad;
+    private boolean sqlEngine;
+    private int commitSize;
+    private int threads = 1;
+
+    public Job() {
+    }
+
+    /**
+     * Copies `defaults`, for a job to override bits of.
+     */
+    private Job(Job defaults) {
+      this.name = defaults.name;
+      this.imageDir = defaults.imageDir;
+      this.dbDir = defaults.dbDir;
+      this.recursive = defaults.recursive;
+      this.maxDepth = defaults.maxDepth;
+      this.includes = new ArrayList<>(defaults.includes);
+      this.excludes = new ArrayList<>(defaults.excludes);
+      this.tagPMeta = defaults.tagPMeta;
+      this.picasaDb = defaults.picasaDb;
+      this.useJournal = defaults.useJournal;
+      this.relocate = defaults.relocate;
+      this.faceRegions = defaults.faceRegions;
+      this.bulkLoad = defaults.bulkLoad;
+      this.sqlEngine = defaults.sqlEngine;
+      this.commitSize = defaults.commitSize;
+      this.threads = defaults.threads;
+    }
+
+    /**
+     * Sets one of the job's settings from the manifest. Setting names are the long forms of the
+     * command line flags (imageDir, dbDir, recursive, pmeta...), and the short ones work too.
+     * @param key the setting's name
+     * @param value what it's set to, as written in the file
+     * @throws IllegalArgumentException if there's no such setting, or `value` doesn't make sense
+     * for it
+     */
+    public void set(String key, String value) {
+      switch (key) {
+        case "name":
+          name = value;
+          break;
+        case "imageDir":
+        case "id":
+          imageDir = KahlaCLI.cleanInput(value);
+          break;
+        case "dbDir":
+        case "dd":
+          dbDir = KahlaCLI.cleanInput(value);
+          break;
+        case "recursive":
+        case "r":
+          recursive = toBoolean(key, value);
+          break;
+        case "maxDepth":
+          maxDepth = toInt(key, value);
+          break;
+        case "include":
+          includes = split(value);
+          break;
+        case "exclude":
+          excludes = split(value);
+          break;
+        case "pmeta":
+        case "m":
+          tagPMeta = toBoolean(key, value);
+          break;
+        case "picasaDb":
+          picasaDb = KahlaCLI.cleanInput(value);
+          break;
+        case "journal":
+        case "j":
+          useJournal = toBoolean(key, value);
+          break;
+        case "relocate":
+          relocate = toBoolean(key, value);
+          break;
+        case "faceRegions":
+          faceRegions = toBoolean(key, value);
+          break;
+        case "bulk":
+          bulkLoad = toBoolean(key, value);
+          break;
+        case "engine":
+          if (!value.equals("jdbc") && !value.equals("sql")) {
+            throw new IllegalArgumentException("unknown engine '"+value+"'. Use 'jdbc' or 'sql'");
+          }
+          sqlEngine = value.equals("sql");
+          break;
+        case "commitSize":
+        case "c":
+          commitSize = toInt(key, value);
+          break;
+        case "threads":
+        case "t":
+          threads = toInt(key, value);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown setting '"+key+"'");
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getImageDir() {
+      return imageDir;
+    }
+
+    public String getDbDir() {
+      return dbDir;
+    }
+
+    /**
+     * @return the walk's limits for this job, from -r, maxDepth, include and exclude
+     */
+    public DirectoryWalker.Filter getFilter() {
+      int depth = 0;
+      if (recursive) {
+        depth = maxDepth != null ? maxDepth : Integer.MAX_VALUE;
+      }
+      return new DirectoryWalker.Filter(depth, includes, excludes);
+    }
+
+    public boolean isTagPMeta() {
+      return tagPMeta;
+    }
+
+    public String getPicasaDb() {
+      return picasaDb;
+    }
+
+    public boolean isUseJournal() {
+      return useJournal;
+    }
+
+    public boolean isRelocate() {
+      return relocate;
+    }
+
+    public boolean isFaceRegions() {
+      return faceRegions;
+    }
+
+    public boolean isBulkLoad() {
+      return bulkLoad;
+    }
+
+    public boolean isSqlEngine() {
+      return sqlEngine;
+    }
+
+    public int getCommitSize() {
+      return commitSize;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    private static boolean toBoolean(String key, String value) {
+      switch (value.toLowerCase()) {
+        case "true":
+        case "yes":
+        case "1":
+          return true;
+        case "false":
+        case "no":
+        case "0":
+          return false;
+        default:
+          throw new IllegalArgumentException(key+" should be true or false, not '"+value+"'");
+      }
+    }
+
+    private static int toInt(String key, String value) {
+      try {
+        return Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(key+" should be a number, not '"+value+"'");
+      }
+    }
+
+    private static List<String> split(String value) {
+      List<String> globs = new ArrayList<>();
+      for (String glob : value.split(",")) {
+        if (!glob.trim().isEmpty()) {
+          globs.add(glob.trim());
+        }
+      }
+      return globs;
+    }
+  }
+
+  /**
+   * Reads every job out of the manifest at `path`.
+   * @param path a .csv or .json file
+   * @param defaults the settings every job starts out with
+   * @return the jobs, in the order they're listed, each with a name and both folders
+   * @throws IOException if the file can't be read, or doesn't make sense; the message says where
+   */
+  public static List<Job> read(String path, Job defaults) throws IOException {
+    String text = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+    // Notepad likes to start files with a byte order mark.
+    if (text.startsWith("\uFEFF")) {
+      text = text.substring(1);
+    }
+    String lower = path.toLowerCase();
+    List<Map<String, String>> rows;
+    if (lower.endsWith(".csv")) {
+      rows = readCsv(text);
+    } else if (lower.endsWith(".json")) {
+      rows = readJson(text);
+    } else if (lower.endsWith(".yaml") || lower.endsWith(".yml")) {
+      throw new IOException("YAML manifests aren't supported. Write it as JSON (.json) or CSV (.csv) instead.");
+    } else {
+      throw new IOException("don't know how to read "+path+". It should end in .csv or .json.");
+    }
+
+    List<Job> jobs = new ArrayList<>();
+    for (Map<String, String> row : rows) {
+      Job job = new Job(defaults);
+      for (Map.Entry<String, String> setting : row.entrySet()) {
+        try {
+          job.set(setting.getKey(), setting.getValue());
+        } catch (IllegalArgumentException e) {
+          throw new IOException("job "+(jobs.size() + 1)+": "+e.getMessage()+".");
+        }
+      }
+      if (job.imageDir == null || job.dbDir == null) {
+        throw new IOException("job "+(jobs.size() + 1)+" needs both an imageDir and a dbDir.");
+      }
+      if (job.name == null) {
+        job.name = "job "+(jobs.size() + 1);
+      }
+      jobs.add(job);
+    }
+    return jobs;
+  }
+
+  /**
+   * A header row, then one job per row. Empty cells keep the default. Cells can be quoted, with ""
+   * for a quote inside one, but can't run over onto the next line. Blank lines, and lines starting
+   * with #, are skipped.
+   */
+  static List<Map<String, String>> readCsv(String text) throws IOException {
+    List<Map<String, String>> rows = new ArrayList<>();
+    List<String> header = null;
+    int lineNumber = 0;
+    for (String line : text.split("\r?\n")) {
+      lineNumber++;
+      if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+        continue;
+      }
+      List<String> cells = splitCsv(line, lineNumber);
+      if (header == null) {
+        header = cells;
+        continue;
+      }
+      if (cells.size() > header.size()) {
+        throw new IOException("line "+lineNumber+" has more cells than the header.");
+      }
+      Map<String, String> row = new LinkedHashMap<>();
+      for (int i = 0; i < cells.size(); i++) {
+        if (!cells.get(i).isEmpty()) {
+          row.put(header.get(i), cells.get(i));
+        }
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  private static List<String> splitCsv(String line, int lineNumber) throws IOException {
+    List<String> cells = new ArrayList<>();
+    StringBuilder cell = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          cell.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          cell.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        cells.add(cell.toString().trim());
+        cell.setLength(0);
+      } else {
+        cell.append(c);
+      }
+    }
+    if (quoted) {
+      throw new IOException("line "+lineNumber+" has a quote that's never closed.");
+    }
+    cells.add(cell.toString().trim());
+    return cells;
+  }
+
+  /**
+   * An array of objects, or an object with a "jobs" array in it. Each job's values can be strings,
+   * numbers or booleans; an array of strings (for include and exclude) is joined up with commas.
+   */
+  static List<Map<String, String>> readJson(String text) throws IOException {
+    JsonReader reader = new JsonReader(text);
+    Object root = reader.readValue();
+    reader.expectEnd();
+    if (root instanceof Map) {
+      root = ((Map<?, ?>) root).get("jobs");
+    }
+    if (!(root instanceof List)) {
+      throw new IOException("the manifest should be a list of jobs, or have one called \"jobs\".");
+    }
+    List<Map<String, String>> rows = new ArrayList<>();
+    for (Object job : (List<?>) root) {
+      if (!(job instanceof Map)) {
+        throw new IOException("job "+(rows.size() + 1)+" should be an object.");
+      }
+      Map<String, String> row = new LinkedHashMap<>();
+      for (Map.Entry<?, ?> setting : ((Map<?, ?>) job).entrySet()) {
+        Object value = setting.getValue();
+        if (value == null) {
+          continue;
+        }
+        if (value instanceof List) {
+          List<String> items = new ArrayList<>();
+          for (Object item : (List<?>) value) {
+            items.add(String.valueOf(item));
+          }
+          value = String.join(",", items);
+        } else if (value instanceof Map) {
+          throw new IOException("job "+(rows.size() + 1)+": "+setting.getKey()+" can't be an object.");
+        }
+        row.put((String) setting.getKey(), value.toString());
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * Just enough JSON for a manifest. Numbers are kept as the text they were written as.
+   */
+  private static class JsonReader {
+    private final String text;
+    private int pos = 0;
+
+    JsonReader(String text) {
+      this.text = text;
+    }
+
+    Object readValue() throws IOException {
+      skipWhitespace();
+      if (pos >= text.length()) {
+        throw error("the file ended early");
+      }
+      char c = text.charAt(pos);
+      if (c == '{') {
+        return readObject();
+      } else if (c == '[') {
+        return readArray();
+      } else if (c == '"') {
+        return readString();
+      } else if (text.startsWith("true", pos)) {
+        pos += 4;
+        return Boolean.TRUE;
+      } else if (text.startsWith("false", pos)) {
+        pos += 5;
+        return Boolean.FALSE;
+      } else if (text.startsWith("null", pos)) {
+        pos += 4;
+        return null;
+      } else if (c == '-' || Character.isDigit(c)) {
+        int start = pos;
+        while (pos < text.length() && "+-.eE0123456789".indexOf(text.charAt(pos)) >= 0) {
+          pos++;
+        }
+        return text.substring(start, pos);
+      }
+      throw error("didn't expect '"+c+"'");
+    }
+
+    private Map<String, Object> readObject() throws IOException {
+      Map<String, Object> object = new LinkedHashMap<>();
+      pos++;
+      skipWhitespace();
+      if (peek() == '}') {
+        pos++;
+        return object;
+      }
+      while (true) {
+        skipWhitespace();
+        if (peek() != '"') {
+          throw error("expected a quoted key");
+        }
+        String key = readString();
+        skipWhitespace();
+        expect(':');
+        object.put(key, readValue());
+        skipWhitespace();
+        if (peek() == ',') {
+          pos++;
+        } else {
+          expect('}');
+          return object;
+        }
+      }
+    }
+
+    private List<Object> readArray() throws IOException {
+      List<Object> array = new ArrayList<>();
+      pos++;
+      skipWhitespace();
+      if (peek() == ']') {
+        pos++;
+        return array;
+      }
+      while (true) {
+        array.add(readValue());
+        skipWhitespace();
+        if (peek() == ',') {
+          pos++;
+        } else {
+          expect(']');
+          return array;
+        }
+      }
+    }
+
+    private String readString() throws IOException {
+      StringBuilder s = new StringBuilder();
+      pos++;
+      while (pos < text.length()) {
+        char c = text.charAt(pos++);
+        if (c == '"') {
+          return s.toString();
+        }
+        if (c != '\\') {
+          s.append(c);
+          continue;
+        }
+        if (pos >= text.length()) {
+          break;
+        }
+        char escaped = text.charAt(pos++);
+        switch (escaped) {
+          case 'n':
+            s.append('\n');
+            break;
+          case 't':
+            s.append('\t');
+            break;
+          case 'r':
+            s.append('\r');
+            break;
+          case 'b':
+            s.append('\b');
+            break;
+          case 'f':
+            s.append('\f');
+            break;
+          case 'u':
+            if (pos + 4 > text.length()) {
+              throw error("a \\u escape got cut off");
+            }
+            try {
+              s.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+            } catch (NumberFormatException e) {
+              throw error("bad \\u escape");
+            }
+            pos += 4;
+            break;
+          default:
+            // \" \\ and \/ all stand for themselves.
+            s.append(escaped);
+        }
+      }
+      throw error("a string is never closed");
+    }
+
+    void expectEnd() throws IOException {
+      skipWhitespace();
+      if (pos < text.length()) {
+        throw error("there's something after the end");
+      }
+    }
+
+    private void expect(char c) throws IOException {
+      if (peek() != c) {
+        throw error("expected '"+c+"'");
+      }
+      pos++;
+    }
+
+    private char peek() {
+      return pos < text.length() ? text.charAt(pos) : 0;
+    }
+
+    private void skipWhitespace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private IOException error(String problem) {
+      int line = 1;
+      for (int i = 0; i < Math.min(pos, text.length()); i++) {
+        if (text.charAt(i) == '\n') {
+          line++;
+        }
+      }
+      return new IOException("line "+line+": "+problem+".");
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package kahla;
+
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@CommandLine.Command(name = "kahlaCLI", mixinStandardHelpOptions = true, version = "0.1",
+        description = "Converts Picasa tags to DigiKam tags.")
+public class KahlaCLI implements Callable<Integer> {
+  // How long Ctrl+C waits for --watch to close the database before giving up on it.
+  private static final long STOP_TIMEOUT_SECONDS = 30;
+
+  // What Kahla exits with: 0 if everything went through, 1 if something didn't (or it was cancelled),
+  // and picocli's 2 if the options don't make sense, so whatever runs --manifest can tell.
+  private static final int EXIT_OK = CommandLine.ExitCode.OK;
+  private static final int EXIT_FAILED = CommandLine.ExitCode.SOFTWARE;
+
+  @CommandLine.Spec
+  private CommandLine.Model.CommandSpec spec;
+
+  @CommandLine.Option(names = {"-id"},
+          description = "The directory containing Picasa-tagged images. Needed unless there's a --manifest.")
+  private String imageDir;
+
+  @CommandLine.Option(names = {"-dd"},
+          description = "The directory containing DigiKam's digikam4.db file. Needed unless there's a --manifest.")
+  private String dbDir;
+
+  @CommandLine.Option(names = {"-r"},
+          description = "Flag for whether to recursively process images in any folders nested within the image directory.")
+  private boolean doRecursive;
+
+  @CommandLine.Option(names = {"--max-depth"},
+          description = "How many levels of folders to go down with -r. Unlimited by default.")
+  private Integer maxDepth;
+
+  @CommandLine.Option(names = {"--include"}, split = ",",
+          description = "Only tag folders whose path (relative to the image directory) matches one of these globs.")
+  private List<String> includes = new ArrayList<>();
+
+  @CommandLine.Option(names = {"--exclude"}, split = ",",
+          description = "Skip folders (and everything in them) whose path relative to the image directory matches one of these globs.")
+  private List<String> excludes = new ArrayList<>();
+
+  @CommandLine.Option(names = {"-m"},
+          description = "Flag for whether to tag images with the names of albums and people they contain.")
+  private boolean tagPMeta;
+
+  @CommandLine.Option(names = {"--picasa-db"}, paramLabel = "DIR",
+          description = "Picasa's data folder (usually %%LOCALAPPDATA%%/Google/Picasa2). With -m, album and people names missing from a folder's picasa.ini are looked up in its contacts.xml and album database.")
+  private String picasaDb;
+
+  @CommandLine.Option(names = {"-c", "--commit-size"}, defaultValue = "0",
+          description = "How many tags to write per database transaction. 0 (the default) commits once per directory.")
+  private int commitSize;
+
+  @CommandLine.Option(names = {"-t", "--threads"}, defaultValue = "1",
+          description = "How many threads to read picasa.ini files with. Database writes always happen on one thread.")
+  private int threads;
+
+  @CommandLine.Option(names = {"-j", "--journal"},
+          description = "Keep a journal next to digikam4.db so later runs skip picasa.ini files that haven't changed, and can pick up where an interrupted run stopped.")
+  private boolean useJournal;
+
+  @CommandLine.Option(names = {"--relocate"},
+          description = "Look for images picasa.ini mentions but DigiKam doesn't have in that folder everywhere else in the library, and tag them where they are now. Names that match more than one image are reported and skipped.")
+  private boolean relocate;
+
+  @CommandLine.Option(names = {"--face-regions"},
+          description = "With -m, also write where each person is in the picture, so they show up as faces in DigiKam and not just as a tag.")
+  private boolean faceRegions;
+
+  @CommandLine.Option(names = {"--plan"}, paramLabel = "REPORT",
+          description = "Don't change anything; work out what a run would do and write it to REPORT (CSV if it ends in .csv, JSON otherwise).")
+  private String planReport;
+
+  @CommandLine.Option(names = {"--export-xmp"},
+          description = "Instead of importing, copy the tags DigiKam has for the images in -id (and, with -r, everything under it) out to .xmp sidecar files next to the images. Uses -t threads to write them.")
+  private boolean exportXmp;
+
+  @CommandLine.Option(names = {"-q", "--quiet"},
+          description = "Don't report on every folder; just print a progress line every few seconds.")
+  private boolean quiet;
+
+  @CommandLine.Option(names = {"--metrics"}, paramLabel = "FILE",
+          description = "Write counts and timings for every phase of the run to FILE as JSON.")
+  private String metricsPath;
+
+  @CommandLine.Option(names = {"--bulk"},
+          description = "Work on a copy of digikam4.db with SQLite's crash safety off, then check it and swap it in for the original. Much faster for a big first run.")
+  private boolean bulkLoad;
+
+  @CommandLine.Option(names = {"--engine"}, defaultValue = "jdbc", paramLabel = "ENGINE",
+          description = "How to write tags: 'jdbc' (the default) tags folder by folder; 'sql' stages everything in a temporary table and lets SQLite match it all up at the end.")
+  private String engine;
+
+  @CommandLine.Option(names = {"--watch"},
+          description = "After tagging everything, keep running and tag folders again as their picasa.ini changes, until stopped with Ctrl+C. Keeps a journal, like -j.")
+  private boolean watch;
+
+  @CommandLine.Option(names = {"--debounce"}, defaultValue = "2000", paramLabel = "MS",
+          description = "With --watch, how long picasa.ini files have to stop changing before they get tagged. 2000 by default.")
+  private long debounceMillis;
+
+  @CommandLine.Option(names = {"--manifest"}, paramLabel = "FILE",
+          description = "Run every import listed in FILE (CSV or JSON) instead of the one given by -id and -dd, without asking for confirmation. Other options apply to every job unless the file says otherwise.")
+  private String manifestPath;
+
+  @CommandLine.Option(names = {"--workers"}, defaultValue = "4", paramLabel = "N",
+          description = "With --manifest, how many jobs to run at once. Jobs writing to the same database always take turns. 4 by default.")
+  private int workers;
+
+  @CommandLine.Option(names = {"-y", "--yes"},
+          description = "Don't ask for confirmation before starting.")
+  private boolean assumeYes;
+
+  public static void main(String[] args) {
+    int exitCode = new CommandLine(new KahlaCLI()).execute(args);
+    System.exit(exitCode);
+  }
+
+  @Override
+  public Integer call() {
+    if (manifestPath != null) {
+      return runManifest();
+    }
+    if (imageDir == null || dbDir == null) {
+      throw usageError("Both -id and -dd are needed, unless there's a --manifest.");
+    }
+    imageDir = cleanInput(imageDir);
+    dbDir = cleanInput(dbDir);
+
+    System.out.println("Images will be processed in the directory: " + imageDir);
+    if (doRecursive) { System.out.println("Folders will be recursively traversed."); }
+    if (tagPMeta) { System.out.println("Images will be tagged with album/face data. (Tags will be prefixed with 'pmeta/'."); }
+    System.out.println("Your digikam4.db file is located in the directory: " + dbDir);
+    if (faceRegions && !tagPMeta) {
+      System.out.println("--face-regions only works with -m, since the faces come from Picasa's face tokens. Ignoring it.");
+      faceRegions = false;
+    }
+
+    int depth = 0;
+    if (doRecursive) {
+      depth = maxDepth != null ? maxDepth : Integer.MAX_VALUE;
+    }
+    DirectoryWalker.Filter filter = new DirectoryWalker.Filter(depth, includes, excludes);
+    TokenRegistry tokens = new TokenRegistry();
+    if (tagPMeta && picasaDb != null) {
+      int seeded = tokens.seed(new File(cleanInput(picasaDb)));
+      System.out.println("Found "+seeded+" album and people names in Picasa's database.");
+    }
+    TagSource source = new PicasaIniSource(imageDir, filter, tagPMeta, tokens);
+
+    // A plan doesn't touch the database, so there's nothing to confirm.
+    if (planReport != null) {
+      System.out.println("Planning only; nothing will be written to the database.");
+      return plan(source);
+    }
+
+    // Exporting only reads the database, but it does write next to every image, so still ask.
+    if (exportXmp) {
+      System.out.println("Tags will be exported from DigiKam's database to .xmp sidecar files next to the images.");
+      return confirm() ? exportXmp() : EXIT_FAILED;
+    }
+
+    if (!engine.equals("jdbc") && !engine.equals("sql")) {
+      throw usageError("Unknown engine '"+engine+"'. Use 'jdbc' or 'sql'.");
+    }
+    if (watch && (bulkLoad || engine.equals("sql"))) {
+      throw usageError("--watch writes folders as they change, so it doesn't work with --bulk or --engine=sql.");
+    }
+    if (watch && !useJournal) {
+      // Only what changed in each file needs writing, and the journal is what knows that.
+      System.out.println("--watch keeps a journal, same as -j.");
+      useJournal = true;
+    }
+    return confirm() ? migrate(source) : EXIT_FAILED;
+  }
+
+  /**
+   * @return an error for picocli to print, along with the usage, before exiting with 2
+   */
+  private CommandLine.ParameterException usageError(String message) {
+    return new CommandLine.ParameterException(spec.commandLine(), message);
+  }
+
+  /**
+   * Asks the user whether the settings printed so far are right.
+   * @return false if they said no
+   */
+  private boolean confirm() {
+    if (assumeYes) {
+      return true;
+    }
+    System.out.println("Is this correct? (Enter 'n' to cancel. Enter anything else to proceed.)");
+
+    Scanner kb = new Scanner(System.in);
+    String input = kb.next().toLowerCase();
+    if (input.equals("n")) {
+      System.out.println("Aborting.");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reads the jobs out of manifestPath and runs them all, with whatever was given on the command
+   * line as every job's defaults. Nobody's expected to be watching, so nothing is asked.
+   * @return EXIT_OK only if the manifest could be read and every job in it finished cleanly
+   */
+  private int runManifest() {
+    if (watch || planReport != null || exportXmp) {
+      throw usageError("--manifest only runs imports, so it doesn't work with --watch, --plan or --export-xmp.");
+    }
+    if (!engine.equals("jdbc") && !engine.equals("sql")) {
+      throw usageError("Unknown engine '"+engine+"'. Use 'jdbc' or 'sql'.");
+    }
+    JobManifest.Job defaults = new JobManifest.Job();
+    if (imageDir != null) {
+      defaults.set("imageDir", imageDir);
+    }
+    if (dbDir != null) {
+      defaults.set("dbDir", dbDir);
+    }
+    if (maxDepth != null) {
+      defaults.set("maxDepth", String.valueOf(maxDepth));
+    }
+    if (picasaDb != null) {
+      defaults.set("picasaDb", picasaDb);
+    }
+    defaults.set("recursive", String.valueOf(doRecursive));
+    defaults.set("include", String.join(",", includes));
+    defaults.set("exclude", String.join(",", excludes));
+    defaults.set("pmeta", String.valueOf(tagPMeta));
+    defaults.set("journal", String.valueOf(useJournal));
+    defaults.set("relocate", String.valueOf(relocate));
+    defaults.set("faceRegions", String.valueOf(faceRegions));
+    defaults.set("bulk", String.valueOf(bulkLoad));
+    defaults.set("engine", engine);
+    defaults.set("commitSize", String.valueOf(commitSize));
+    defaults.set("threads", String.valueOf(threads));
+
+    List<JobManifest.Job> jobs;
+    try {
+      jobs = JobManifest.read(manifestPath, defaults);
+    } catch (IOException e) {
+      System.out.println("Couldn't read the manifest "+manifestPath+": "+e.getMessage());
+      return EXIT_FAILED;
+    }
+    if (jobs.isEmpty()) {
+      System.out.println("There aren't any jobs in "+manifestPath+".");
+      return EXIT_FAILED;
+    }
+    if (metricsPath != null) {
+      System.out.println("--metrics only covers a single run. Ignoring it.");
+    }
+    boolean clean = new ManifestRunner(jobs, workers).run();
+    System.out.println(clean ? "All done. Kahla will now close."
+            : "Some jobs didn't finish cleanly; see above. Kahla will now close.");
+    return clean ? EXIT_OK : EXIT_FAILED;
+  }
+
+  /**
+   * Runs the import for real, then writes out the metrics if they were asked for.
+   * @return EXIT_OK if everything was written
+   */
+  private int migrate(TagSource source) {
+    DigikamSink sink = new DigikamSink(dbDir, commitSize, useJournal, bulkLoad, engine.equals("sql"));
+    sink.setRelocate(relocate);
+    sink.setFaceRegions(faceRegions);
+    KahlaCore core = new KahlaCore(source, sink);
+    core.setThreads(threads);
+    core.setQuiet(quiet);
+    CountDownLatch stopped = watch ? stopOnShutdown() : null;
+    try {
+      ImportResult result = watch ? core.watch(debounceMillis) : core.run();
+      if (!result.isOpened()) {
+        return EXIT_FAILED;
+      }
+      if (metricsPath != null) {
+        try {
+          result.writeMetrics(metricsPath);
+          System.out.println("Metrics written to "+metricsPath+".");
+        } catch (IOException e) {
+          System.out.println("Couldn't write the metrics to "+metricsPath+".");
+          e.printStackTrace();
+        }
+      }
+      System.out.println("All done. Kahla will now close.");
+      return result.isClean() ? EXIT_OK : EXIT_FAILED;
+    } finally {
+      if (stopped != null) {
+        stopped.countDown();
+      }
+    }
+  }
+
+  /**
+   * --watch runs until Ctrl+C, which starts the JVM shutting down. This makes that interrupt the
+   * watch instead, and holds the shutdown up until the latch is counted down, so whatever was
+   * being written gets finished and the database gets closed properly.
+   * @return the latch to count down once everything's closed
+   */
+  private static CountDownLatch stopOnShutdown() {
+    Thread watching = Thread.currentThread();
+    CountDownLatch stopped = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      watching.interrupt();
+      try {
+        stopped.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        // Shutting down regardless.
+      }
+    }, "kahla-stop"));
+    return stopped;
+  }
+
+  /**
+   * Writes DigiKam's tags for everything in imageDir out to .xmp sidecars, then writes out the
+   * metrics if they were asked for.
+   * @return EXIT_OK if every sidecar that needed writing was written
+   */
+  private int exportXmp() {
+    XmpExport export = new XmpExport(dbDir, imageDir, doRecursive, threads);
+    RunMetrics metrics = export.run();
+    if (metrics == null) {
+      return EXIT_FAILED;
+    }
+    System.out.println(export.summary());
+    if (metricsPath != null) {
+      try {
+        metrics.write(metricsPath);
+        System.out.println("Metrics written to "+metricsPath+".");
+      } catch (IOException e) {
+        System.out.println("Couldn't write the metrics to "+metricsPath+".");
+        e.printStackTrace();
+      }
+    }
+    System.out.println("All done. Kahla will now close.");
+    return metrics.get(RunMetrics.Counter.SIDECARS_FAILED) == 0 ? EXIT_OK : EXIT_FAILED;
+  }
+
+  /**
+   * Works out what a run would do, without writing anything to DigiKam's database, and writes a
+   * report to planReport (CSV if it ends in .csv, JSON otherwise).
+   * @return EXIT_OK if the report was written
+   */
+  private int plan(TagSource source) {
+    TagPlan plan = new TagPlan();
+    DigikamSink sink = new DigikamSink(dbDir, plan);
+    sink.setRelocate(relocate);
+    sink.setFaceRegions(faceRegions);
+    KahlaCore core = new KahlaCore(source, sink);
+    core.setThreads(threads);
+    // The plan is the report; no need to narrate it folder by folder too.
+    core.setQuiet(true);
+    ImportResult result = core.run();
+    if (!result.isOpened()) {
+      return EXIT_FAILED;
+    }
+    plan.setElapsedMillis(result.getElapsedMillis());
+    try {
+      plan.write(planReport);
+      System.out.println(plan.summary());
+      System.out.println("Plan written to "+planReport+". Nothing was changed in DigiKam's database.");
+      return EXIT_OK;
+    } catch (IOException e) {
+      System.out.println("Couldn't write the plan to "+planReport+".");
+      e.printStackTrace();
+      return EXIT_FAILED;
+    }
+  }
+
+  /**
+   * Takes a string representation of a filepath, formats it, and returns the new string. Backslashes
+   * will be replaced with forward slashes. Double slashes will be replaced with single slashes.
+   *
+   * (This is to make some file path surgery later a little easier.)
+   * @param input a filepath contained in a String
+   * @return a formatted String filepath (with single forward slashes only)
+   */
+  public static String cleanInput(String input) {
+    input = input.replace("\\", "/");
+    input = input.replace("//", "/");
+    return input;
+  }
+}
@@ -0,0 +1,326 @@
+package kahla;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Runs one import: takes every folder a TagSource has and writes its tags to a TagSink, keeping
+ * count as it goes. Everything about a run lives on its instance, so any number of them can run
+ * at once in one JVM, as long as they're writing to different places.
+ */
+public class KahlaCore {
+  // How often to print a progress line, in seconds.
+  private static final int PROGRESS_INTERVAL = 5;
+  // How long --watch waits for more changes before trying failed folders (and folders DigiKam
+  // didn't know about yet) again on their own.
+  private static final long WATCH_RETRY_MILLIS = 30_000;
+
+  private final TagSource source;
+  private final TagSink sink;
+  private int threads = 1;
+  // Whether to skip the line-per-folder reporting and only print progress every so often.
+  private boolean quiet;
+  // What to call this run in progress lines, when it's one of several.
+  private String name;
+
+  private RunMetrics metrics = new RunMetrics();
+  // Folders that couldn't be written (DigiKam had the database locked for too long, most likely),
+  // to have another go at once everything else is done.
+  private final Set<String> retryQueue = new LinkedHashSet<>();
+  // Whether we're on that second go.
+  private boolean retrying;
+  // With --watch, folders that changed before DigiKam knew about them.
+  private final Set<String> waiting = new LinkedHashSet<>();
+
+  /**
+   * @param source where the tags come from
+   * @param sink where the tags go
+   */
+  public KahlaCore(TagSource source, TagSink sink) {
+    this.source = source;
+    this.sink = sink;
+  }
+
+  /**
+   * @param threads how many threads to read tags with; 1 (the default) does everything on the
+   *                calling thread
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * @param quiet whether to leave out the report for every folder
+   */
+  public void setQuiet(boolean quiet) {
+    this.quiet = quiet;
+  }
+
+  /**
+   * @param name what to call this run in progress lines, so they can be told apart from other
+   *             runs going at the same time; null (the default) for nothing
+   */
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Runs the import, start to finish. Don't run the same KahlaCore twice at once.
+   * @return what got done
+   */
+  public ImportResult run() {
+    if (!open()) {
+      return new ImportResult(false, false, new ArrayList<>(), metrics);
+    }
+    importAll();
+    return finish(retryFailed());
+  }
+
+  /**
+   * Runs the import once, to catch up, and then stays open, writing each folder again whenever
+   * its tags change, until the thread is interrupted. The sink (and everything it's got cached)
+   * stays open the whole time.
+   * @param debounceMillis how long changes have to stop coming before they get written
+   * @return what got done, once interrupted
+   */
+  public ImportResult watch(long debounceMillis) {
+    if (!open()) {
+      return new ImportResult(false, false, new ArrayList<>(), metrics);
+    }
+    // Start watching before catching up, so nothing that changes in between gets missed.
+    IniWatcher watcher;
+    try {
+      watcher = source.watch(sink);
+    } catch (IOException e) {
+      System.out.println("Couldn't start watching for changes.");
+      e.printStackTrace();
+      watcher = null;
+    }
+    if (watcher == null) {
+      sink.abort();
+      return new ImportResult(false, false, new ArrayList<>(), metrics);
+    }
+    importAll();
+    // Anything that failed twice gets another go the next time something changes.
+    retryQueue.addAll(retryFailed());
+    metrics.stopProgress();
+    // The run's totals only go to Flight Recorder once, when watching stops.
+    System.out.println(metrics.summary());
+    System.out.println("Watching "+watcher.getWatched()+" folders for changes to picasa.ini. " +
+            "Press Ctrl+C to stop.");
+
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        // Anything that failed gets another go with the next lot, or on its own after a while.
+        boolean pending = !retryQueue.isEmpty() || !waiting.isEmpty();
+        Set<String> dirs = watcher.take(debounceMillis, pending ? WATCH_RETRY_MILLIS : -1);
+        dirs.addAll(retryQueue);
+        dirs.addAll(waiting);
+        retryQueue.clear();
+        syncDirectories(dirs);
+      }
+    } catch (InterruptedException e) {
+      // Time to stop.
+    } finally {
+      try {
+        watcher.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    List<String> failed = new ArrayList<>(takeFailedDirectories());
+    if (!failed.isEmpty()) {
+      System.out.println(failed.size()+" folders couldn't be written before stopping. Run Kahla on them " +
+              "again: "+String.join(", ", failed));
+    }
+    return finish(failed);
+  }
+
+  private boolean open() {
+    metrics = new RunMetrics();
+    metrics.setLabel(name);
+    retryQueue.clear();
+    waiting.clear();
+    retrying = false;
+    return sink.open(metrics);
+  }
+
+  /**
+   * Walks everything the source has and writes it to the sink.
+   */
+  private void importAll() {
+    // Count the folders there are to do on the side, so progress can come with an ETA.
+    countDirectories();
+    metrics.startProgress(PROGRESS_INTERVAL);
+
+    // Only folders the sink has somewhere to put come out of the walk.
+    Iterator<String> dirs = metrics.timeWalk(source.directories(sink));
+    if (threads > 1) {
+      new ImportPipeline(threads).run(dirs, dir -> source.read(dir, sink, metrics), this::writeDirectory);
+    } else {
+      while (dirs.hasNext()) {
+        String currentDir = dirs.next();
+        writeDirectory(currentDir, source.read(currentDir, sink, metrics));
+      }
+    }
+  }
+
+  /**
+   * Writes out the folders the watcher says have changed, straight away.
+   */
+  private void syncDirectories(Set<String> dirs) {
+    boolean refreshed = false;
+    int written = 0;
+    for (String dir : dirs) {
+      // A new folder DigiKam has only just found; see if it's found it yet.
+      if (!sink.accepts(dir) && !refreshed) {
+        sink.refresh();
+        refreshed = true;
+      }
+      if (!sink.accepts(dir)) {
+        // Keep checking back until DigiKam gets around to it.
+        if (waiting.add(dir)) {
+          report("DigiKam doesn't know about the folder "+dir+" yet. It'll be tagged once it does.");
+        }
+        continue;
+      }
+      waiting.remove(dir);
+      writeDirectory(dir, source.read(dir, sink, metrics));
+      written++;
+    }
+    // Don't leave anything sitting in an open transaction until the next change comes along.
+    retryQueue.addAll(takeFailedDirectories());
+    if (written > 0) {
+      System.out.println("Synced "+written+" changed folders.");
+    }
+  }
+
+  /**
+   * Lets go of the sink and says how the run went.
+   * @param failed the folders that couldn't be written
+   */
+  private ImportResult finish(List<String> failed) {
+    boolean clean = sink.finish();
+    String sourceSummary = source.summary();
+    if (sourceSummary != null) {
+      System.out.println(sourceSummary);
+    }
+    System.out.println(metrics.finish());
+    return new ImportResult(true, clean, failed, metrics);
+  }
+
+  /**
+   * Walks the tree a second time on a background thread, just to count the folders the real walk
+   * will turn up, and hands the count to the metrics once it has it.
+   */
+  private void countDirectories() {
+    RunMetrics runMetrics = metrics;
+    Thread counter = new Thread(() -> runMetrics.setExpectedDirectories(source.countDirectories(sink)),
+            "kahla-counter");
+    counter.setDaemon(true);
+    counter.start();
+  }
+
+  /**
+   * Gives every folder that failed earlier in the run one more go, now that everything else is out
+   * of the way (and whatever DigiKam was doing has hopefully finished). Anything that still fails
+   * gets listed.
+   * @return the folders that failed both times
+   */
+  private List<String> retryFailed() {
+    Set<String> dirs = takeFailedDirectories();
+    if (dirs.isEmpty()) {
+      return new ArrayList<>();
+    }
+    System.out.println("Retrying "+dirs.size()+" folders that couldn't be written earlier.");
+    retrying = true;
+    for (String dir : dirs) {
+      writeDirectory(dir, source.read(dir, sink, metrics));
+    }
+    retrying = false;
+
+    List<String> failed = new ArrayList<>(takeFailedDirectories());
+    metrics.count(RunMetrics.Counter.DIRECTORIES_FAILED, failed.size());
+    if (!failed.isEmpty()) {
+      System.out.println(failed.size()+" folders still couldn't be written. Run Kahla on them again " +
+              "once DigiKam is closed, or see the errors above: "+String.join(", ", failed));
+    }
+    return failed;
+  }
+
+  /**
+   * Writes out whatever the sink still has queued, so every failure so far is known about.
+   * @return every folder queued for a retry, plus every folder the sink had to undo, and forgets
+   * them
+   */
+  private Set<String> takeFailedDirectories() {
+    Set<String> dirs = new LinkedHashSet<>(retryQueue);
+    retryQueue.clear();
+    dirs.addAll(sink.flush());
+    return dirs;
+  }
+
+  /**
+   * Tags everything listed in `ini` and reports on how it went. Only ever call this from the
+   * thread that runs the import.
+   * @param currentDir the directory `ini` was read from
+   * @param ini the parsed picasa.ini for `currentDir`, or null if there wasn't one
+   */
+  private void writeDirectory(String currentDir, PicasaIni ini) {
+    String[] folders = currentDir.split("/");
+    report("Processing folder "+folders[folders.length-1]+".");
+
+    RunMetrics.DirectoryEvent event = metrics.beginDirectory(currentDir);
+    event.retry = retrying;
+    DirectoryCounts counts = new DirectoryCounts();
+    // If there isn't a picasa.ini in this directory, we move on.
+    if (ini == null) {
+      report("No picasa.ini found in this directory. Continuing.");
+    } else if (ini.isUnchanged()) {
+      metrics.count(RunMetrics.Counter.DIRECTORIES_UNCHANGED, 1);
+      report("picasa.ini hasn't changed since the last run. Continuing.");
+    } else {
+      TagSink.Status status = sink.write(currentDir, source.resolve(ini, metrics), counts);
+      if (status != TagSink.Status.FAILED) {
+        event.imagesTagged = counts.getImagesTagged();
+        event.imagesSkipped = counts.getImagesSkipped();
+        event.imageTags = counts.getImageTags();
+      }
+      if (status == TagSink.Status.WRITTEN) {
+        String report = "Done tagging in this directory. "+counts.getImagesTagged()+" items tagged.";
+        if (counts.getImagesSkipped() > 0) {
+          report += " "+counts.getImagesSkipped()+" items were skipped, either because they don't exist in " +
+                  "DigiKam's database, or because picasa.ini contains a reference to an image that has " +
+                  "been moved or deleted.";
+        }
+        report(report);
+      } else if (status == TagSink.Status.STAGED) {
+        report("Staged this directory. It'll be written at the end of the run.");
+      } else if (status == TagSink.Status.UNCHANGED) {
+        // Touched, but the contents are the same.
+        metrics.count(RunMetrics.Counter.DIRECTORIES_UNCHANGED, 1);
+        report("picasa.ini hasn't changed since the last run. Continuing.");
+      } else if (status == TagSink.Status.FAILED) {
+        // The retry gets counted instead, so this one's counts are left off.
+        retryQueue.add(currentDir);
+        System.out.println("Couldn't finish tagging in "+currentDir+"."
+                +(retrying ? "" : " It'll be tried again at the end of the run."));
+      }
+    }
+    metrics.endDirectory(event);
+  }
+
+  /**
+   * Prints `message`, unless we've been asked to keep quiet.
+   */
+  private void report(String message) {
+    if (!quiet) {
+      System.out.println(message);
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package kahla;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs every job in a --manifest, unattended, and says how each one went at the end.
+ *
+ * Jobs writing to different databases run side by side, up to `workers` at a time. Jobs writing to
+ * the same database take turns, in the order they're listed, since SQLite only lets one of them
+ * write at a time anyway.
+ *
+ * Jobs that would otherwise each build the same thing share it instead: the names seeded from a
+ * Picasa data folder are read once for every job pointing at it, and jobs reading overlapping
+ * folders with the same -m setting share an IniCache, so each picasa.ini there is only parsed
+ * once. Each job still resolves tokens in its own TokenRegistry, on top of the seeded one, so what
+ * one job learns never depends on how far along another one is.
+ */
+public class ManifestRunner {
+  private final List<JobManifest.Job> jobs;
+  private final int workers;
+
+  // Picasa data folder -> the names seeded from it, shared by every job that uses it.
+  private final Map<String, TokenRegistry> seeded = new HashMap<>();
+  // Job -> the cache it shares with other jobs, if any do.
+  private final Map<JobManifest.Job, IniCache> caches = new HashMap<>();
+
+  /**
+   * @param jobs the jobs to run
+   * @param workers how many jobs to run at once, at most
+   */
+  public ManifestRunner(List<JobManifest.Job> jobs, int workers) {
+    this.jobs = jobs;
+    this.workers = Math.max(1, workers);
+  }
+
+  /**
+   * What became of one job.
+   */
+  private static class Outcome {
+    private final JobManifest.Job job;
+    private final ImportResult result;
+
+    Outcome(JobManifest.Job job, ImportResult result) {
+      this.job = job;
+      this.result = result;
+    }
+  }
+
+  /**
+   * Runs every job, and blocks until they're all done.
+   * @return true if every job finished cleanly
+   */
+  public boolean run() {
+    long started = System.nanoTime();
+    planSharing();
+
+    // Jobs for the same database go in one queue, run in order on one worker.
+    Map<String, List<JobManifest.Job>> byDatabase = new LinkedHashMap<>();
+    for (JobManifest.Job job : jobs) {
+      byDatabase.computeIfAbsent(canonical(job.getDbDir()), k -> new ArrayList<>()).add(job);
+    }
+    int threads = Math.min(workers, byDatabase.size());
+    System.out.println("Running "+jobs.size()+" jobs on "+byDatabase.size()+" databases, "+threads
+            +" at a time.");
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads, r -> new Thread(r, "kahla-job"));
+    List<Future<List<Outcome>>> queues = new ArrayList<>();
+    for (List<JobManifest.Job> queue : byDatabase.values()) {
+      queues.add(pool.submit(() -> {
+        List<Outcome> outcomes = new ArrayList<>();
+        for (JobManifest.Job job : queue) {
+          outcomes.add(new Outcome(job, runJob(job)));
+        }
+        return outcomes;
+      }));
+    }
+    pool.shutdown();
+
+    Map<JobManifest.Job, ImportResult> results = new HashMap<>();
+    for (Future<List<Outcome>> queue : queues) {
+      try {
+        for (Outcome outcome : queue.get()) {
+          results.put(outcome.job, outcome.result);
+        }
+      } catch (InterruptedException e) {
+        pool.shutdownNow();
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException e) {
+        System.out.println("A job stopped with an error:");
+        e.getCause().printStackTrace();
+      }
+    }
+    System.out.println(report(results, System.nanoTime() - started));
+    for (JobManifest.Job job : jobs) {
+      ImportResult result = results.get(job);
+      if (result == null || !result.isClean()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs one job, start to finish. Called on a worker thread.
+   * @return how it went, or null if it never got going
+   */
+  private ImportResult runJob(JobManifest.Job job) {
+    System.out.println("Starting "+job.getName()+": "+job.getImageDir()+" into "+job.getDbDir()+".");
+    IniCache cache = caches.get(job);
+    if (job.isFaceRegions() && !job.isTagPMeta()) {
+      System.out.println(job.getName()+" asks for face regions but not pmeta, and the faces come from "
+              +"Picasa's face tokens. Ignoring faceRegions for it.");
+    }
+    try {
+      PicasaIniSource source = new PicasaIniSource(job.getImageDir(), job.getFilter(), job.isTagPMeta(),
+              registryFor(job));
+      source.setCache(cache, canonical(job.getDbDir()));
+      DigikamSink sink = new DigikamSink(job.getDbDir(), job.getCommitSize(), job.isUseJournal(), job.isBulkLoad(),
+              job.isSqlEngine());
+      sink.setRelocate(job.isRelocate());
+      sink.setFaceRegions(job.isTagPMeta() && job.isFaceRegions());
+      KahlaCore core = new KahlaCore(source, sink);
+      core.setThreads(job.getThreads());
+      // With several jobs going at once, a line per folder would just be noise.
+      core.setQuiet(true);
+      core.setName(job.getName());
+      ImportResult result = core.run();
+      System.out.println("Finished "+job.getName()+".");
+      return result;
+    } catch (RuntimeException e) {
+      System.out.println(job.getName()+" stopped with an error:");
+      e.printStackTrace();
+      return null;
+    } finally {
+      if (cache != null) {
+        cache.release();
+      }
+    }
+  }
+
+  /**
+   * Works out which jobs read overlapping folders with the same -m setting, and so should share an
+   * IniCache. Parsing with and without -m turns out differently, so those never share. Jobs on the
+   * same database don't count as overlapping each other: they take turns, so sharing would only
+   * mean holding on to everything the first one parsed until the next one starts.
+   */
+  private void planSharing() {
+    Map<Boolean, List<JobManifest.Job>> byPMeta = new LinkedHashMap<>();
+    for (JobManifest.Job job : jobs) {
+      byPMeta.computeIfAbsent(job.isTagPMeta(), k -> new ArrayList<>()).add(job);
+    }
+    for (List<JobManifest.Job> group : byPMeta.values()) {
+      List<JobManifest.Job> sharing = new ArrayList<>();
+      for (JobManifest.Job job : group) {
+        for (JobManifest.Job other : group) {
+          if (job != other && overlaps(job.getImageDir(), other.getImageDir())
+                  && !canonical(job.getDbDir()).equals(canonical(other.getDbDir()))) {
+            sharing.add(job);
+            break;
+          }
+        }
+      }
+      if (!sharing.isEmpty()) {
+        IniCache cache = new IniCache(sharing.size());
+        for (JobManifest.Job job : sharing) {
+          cache.addReader(job.getImageDir(), canonical(job.getDbDir()));
+          caches.put(job, cache);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tokens mean the same thing everywhere one Picasa install has been, so the names seeded from its
+   * data folder are shared by every job pointing at it; the first job to need them reads them.
+   * @return a registry of `job`'s own, on top of the seeded one if it has one
+   */
+  private TokenRegistry registryFor(JobManifest.Job job) {
+    if (!job.isTagPMeta() || job.getPicasaDb() == null) {
+      return new TokenRegistry();
+    }
+    synchronized (seeded) {
+      return new TokenRegistry(seeded.computeIfAbsent(canonical(job.getPicasaDb()), k -> {
+        TokenRegistry tokens = new TokenRegistry();
+        int names = tokens.seed(new File(job.getPicasaDb()));
+        System.out.println("Found "+names+" album and people names in Picasa's database at "
+                +job.getPicasaDb()+".");
+        return tokens;
+      }));
+    }
+  }
+
+  /**
+   * @return true if one of the two folders is (or is inside) the other
+   */
+  private static boolean overlaps(String a, String b) {
+    String first = canonical(a);
+    String second = canonical(b);
+    return first.equals(second) || first.startsWith(second+File.separator)
+            || second.startsWith(first+File.separator);
+  }
+
+  private static String canonical(String dir) {
+    return Paths.get(dir).toAbsolutePath().normalize().toString();
+  }
+
+  /**
+   * @return a table with a line per job and a total, for the end of the run
+   */
+  private String report(Map<JobManifest.Job, ImportResult> results, long elapsedNanos) {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("%-20s %-10s %8s %10s %10s %8s %9s %10s%n", "Job", "Result", "Folders",
+            "Images", "Tags", "Shared", "Time", "Images/s"));
+    long images = 0;
+    long tags = 0;
+    long shared = 0;
+    int clean = 0;
+    for (JobManifest.Job job : jobs) {
+      ImportResult result = results.get(job);
+      String name = job.getName().length() > 20 ? job.getName().substring(0, 19)+"~" : job.getName();
+      if (result == null || !result.isOpened()) {
+        report.append(String.format("%-20s %-10s%n", name, "not run"));
+        continue;
+      }
+      long jobShared = result.getCount(RunMetrics.Counter.INI_CACHE_HITS);
+      double seconds = result.getElapsedMillis() / 1000.0;
+      String status = result.isClean() ? "ok" : result.getFailedDirectories().size()+" failed";
+      report.append(String.format("%-20s %-10s %8d %10d %10d %8d %8.1fs %10d%n", name, status,
+              result.getDirectories(), result.getImagesTagged(), result.getImageTags(), jobShared, seconds,
+              Math.round(result.getImagesTagged() / Math.max(seconds, 0.001))));
+      images += result.getImagesTagged();
+      tags += result.getImageTags();
+      shared += jobShared;
+      if (result.isClean()) {
+        clean++;
+      }
+    }
+    double seconds = elapsedNanos / 1e9;
+    report.append(clean+" of "+jobs.size()+" jobs finished cleanly. "+images+" images tagged ("+tags
+            +" image tags) in "+String.format("%.1f", seconds)+"s, "
+            +Math.round(images / Math.max(seconds, 0.001))+" images/s overall.");
+    if (shared > 0) {
+      report.append(" "+shared+" picasa.ini files were parsed once and shared between jobs.");
+    }
+    return report.toString();
+  }
+}
@@ -0,0 +1,64 @@
+package kahla;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of (image, tag) pairs, each packed into a single long by IniJournal.pack, so
+ * queueing a pair never allocates anything. Tens of millions of pairs fit in a few hundred MB.
+ *
+ * Before the pairs get written they're sorted and duplicates are squeezed out in place. Sorted,
+ * they come out grouped by image and in ID order, which is the order ImageTags' indexes are in.
+ */
+public class PairBuffer {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private long[] pairs = new long[INITIAL_CAPACITY];
+  private int size = 0;
+
+  public void add(int imageId, int tagId) {
+    if (size == pairs.length) {
+      // Grow by half, the way ArrayList does; doubling a huge array can ask for more than we need.
+      pairs = Arrays.copyOf(pairs, pairs.length + (pairs.length >> 1));
+    }
+    pairs[size++] = IniJournal.pack(imageId, tagId);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Sorts the pairs and drops any repeats.
+   * @return how many distinct pairs are left
+   */
+  public int sortAndDedupe() {
+    Arrays.sort(pairs, 0, size);
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (kept == 0 || pairs[i] != pairs[kept - 1]) {
+        pairs[kept++] = pairs[i];
+      }
+    }
+    size = kept;
+    return size;
+  }
+
+  public int imageId(int i) {
+    return (int) (pairs[i] >>> 32);
+  }
+
+  public int tagId(int i) {
+    return (int) pairs[i];
+  }
+
+  /**
+   * Empties the buffer. It keeps its capacity, since the next batch will likely be about as big.
+   */
+  public void clear() {
+    size = 0;
+  }
+}
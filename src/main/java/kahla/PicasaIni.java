@@ -0,0 +1,189 @@
+package kahla;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Everything we pulled out of one directory's .picasa.ini: the images it mentions and the tags
+ * each of them should get. This is plain data with no ties to the database, so ini files can be
+ * read and parsed on one thread and written to DigiKam on another.
+ */
+public class PicasaIni {
+  private final String iniPath;
+  private final List<Entry> entries = new ArrayList<>();
+
+  // What the file looked like when we read it, for the journal.
+  private long size;
+  private long modified;
+  private String hash;
+  // True if the journal says this file hasn't changed since the last run, so it was never parsed.
+  private boolean unchanged;
+  // How many album/face tags were left off because nothing said what their token meant.
+  private int unresolvedTokens;
+  // Album/face tokens read but not yet swapped for names; null once there aren't any.
+  private PicasaIniParser.PendingTokens pendingTokens;
+
+  /**
+   * @param iniPath the path of the ini file these entries come from
+   */
+  public PicasaIni(String iniPath) {
+    this.iniPath = iniPath;
+  }
+
+  /**
+   * Makes a stand-in for an ini file the journal says we've already finished, and so wasn't read.
+   * @param iniPath the path of the ini file
+   * @return a PicasaIni with no entries, marked as unchanged
+   */
+  public static PicasaIni unchanged(String iniPath) {
+    PicasaIni ini = new PicasaIni(iniPath);
+    ini.unchanged = true;
+    return ini;
+  }
+
+  /**
+   * Records the size, modification time and content hash of the file as it was read.
+   */
+  public void setFileState(long size, long modified, String hash) {
+    this.size = size;
+    this.modified = modified;
+    this.hash = hash;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getModified() {
+    return modified;
+  }
+
+  /**
+   * @return a hex hash of the file's contents, or null if it wasn't hashed
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * @return true if this file was skipped because it hasn't changed since the last run
+   */
+  public boolean isUnchanged() {
+    return unchanged;
+  }
+
+  public void setUnresolvedTokens(int unresolvedTokens) {
+    this.unresolvedTokens = unresolvedTokens;
+  }
+
+  /**
+   * @return how many album/face tags were left off images in this file because their token was
+   * never defined
+   */
+  public int getUnresolvedTokens() {
+    return unresolvedTokens;
+  }
+
+  void setPendingTokens(PicasaIniParser.PendingTokens pendingTokens) {
+    this.pendingTokens = pendingTokens;
+  }
+
+  /**
+   * Swaps this file's album and face tokens for names. Until then, images with any in them aren't
+   * in getEntries() yet. Call it in the order the files were listed, on one thread, since what a
+   * token resolves to can depend on the files that came before.
+   * @param registry album/face names shared with the rest of the run; learns this file's names
+   * @return the finished file; this one, if there was nothing to resolve
+   */
+  public PicasaIni resolve(TokenRegistry registry) {
+    return pendingTokens == null ? this : pendingTokens.resolve(this, registry);
+  }
+
+  /**
+   * @return the path of the ini file these entries come from
+   */
+  public String getIniPath() {
+    return iniPath;
+  }
+
+  /**
+   * @return every image in the ini file that has at least one tag, in the order they appear
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Records that `imageName` should be tagged with everything in `tags`. Images without any tags
+   * aren't worth keeping, so they're ignored.
+   * @param imageName the file name, as written in the ini file
+   * @param tags the tags for that file
+   * @return the new entry, or null if there weren't any tags
+   */
+  public Entry add(String imageName, List<String> tags) {
+    if (tags.isEmpty()) {
+      return null;
+    }
+    Entry entry = new Entry(imageName, tags);
+    entries.add(entry);
+    return entry;
+  }
+
+  /**
+   * One image from the ini file, with its tags.
+   */
+  public static class Entry {
+    private final String imageName;
+    private final List<String> tags;
+    // Where each person facetagged in this image is. Most images don't have any, so these only
+    // get made for the ones that do.
+    private String[] faceTags;
+    private long[] faceRects;
+    private int faceCount;
+
+    public Entry(String imageName, List<String> tags) {
+      this.imageName = imageName;
+      this.tags = tags;
+    }
+
+    public String getImageName() {
+      return imageName;
+    }
+
+    public List<String> getTags() {
+      return tags;
+    }
+
+    /**
+     * Records a face in this image.
+     * @param tag the person's tag, which is also in getTags()
+     * @param rect where the face is, as Picasa's rect64 packs it: left, top, right and bottom, 16
+     *             bits each from the top down, as fractions of 65535 of the image's size
+     */
+    public void addFace(String tag, long rect) {
+      if (faceTags == null) {
+        faceTags = new String[2];
+        faceRects = new long[2];
+      } else if (faceCount == faceTags.length) {
+        faceTags = Arrays.copyOf(faceTags, faceCount * 2);
+        faceRects = Arrays.copyOf(faceRects, faceCount * 2);
+      }
+      faceTags[faceCount] = tag;
+      faceRects[faceCount] = rect;
+      faceCount++;
+    }
+
+    public int getFaceCount() {
+      return faceCount;
+    }
+
+    public String getFaceTag(int i) {
+      return faceTags[i];
+    }
+
+    public long getFaceRect(int i) {
+      return faceRects[i];
+    }
+  }
+}
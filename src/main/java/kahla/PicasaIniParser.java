@@ -0,0 +1,512 @@
+package kahla;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads a .picasa.ini file into a PicasaIni. This only touches the file system, never the
+ * database, so it's safe to run on worker threads.
+ *
+ * The file is read once, top to bottom. Album and face definitions can show up anywhere in the
+ * file (the [Contacts2] block is usually at the very end), so album and face tokens on an image
+ * are only noted down while reading, and get swapped for their names afterwards. Names this file
+ * doesn't define are looked up in a TokenRegistry shared with every other file in the run, and
+ * tokens nobody defines are left off (and reported) rather than tagged.
+ *
+ * What a token resolves to can depend on which files were read before this one, so that last step
+ * is kept apart from the reading: parseUnresolved() never touches the registry, and the import
+ * calls PicasaIni.resolve() on the writing thread, in walk order, however many threads read the
+ * files.
+ */
+public class PicasaIniParser {
+  private static final String ALBUM_SECTION = "[.album:";
+  private static final String CONTACTS_SECTION = "[Contacts2]";
+
+  private final boolean tagPMeta;
+  private final PicasaIni ini;
+
+  // Every album/face token this file defines and its name, in the order they're defined.
+  private final List<String> definitions = new ArrayList<>();
+
+  // What kind of section we're in, and the name of the image if it's an image section.
+  private static final int SECTION_NONE = 0;
+  private static final int SECTION_IMAGE = 1;
+  private static final int SECTION_ALBUM = 2;
+  private static final int SECTION_CONTACTS = 3;
+  private int section = SECTION_NONE;
+  private String imageName;
+  private List<String> tags;
+  // For the album section we're in.
+  private String albumName;
+  private String albumToken;
+
+  // Tags (across every image) that are still an album/face token waiting to be swapped for a name.
+  // Each one is packed as two ints: which image, and which position in that image's tag list.
+  // Images only go into the PicasaIni once that's done, since some might end up with no tags.
+  private List<String> imageNames = new ArrayList<>();
+  private List<List<String>> imageTags = new ArrayList<>();
+  private int[] unresolved = new int[32];
+  private int unresolvedCount = 0;
+  // The face rectangle (still packed, as rect64 has it) for each of those, or 0 for album tokens.
+  private long[] unresolvedRects = new long[16];
+
+  private PicasaIniParser(String iniPath, boolean tagPMeta) {
+    this.tagPMeta = tagPMeta;
+    this.ini = new PicasaIni(iniPath);
+  }
+
+  /**
+   * The album/face tokens in one file, waiting to be swapped for names. Nothing in here changes
+   * once the file's been read, so the same file can be resolved any number of times (once per
+   * job, with --manifest).
+   */
+  static class PendingTokens {
+    private final List<String> definitions;
+    private final List<String> imageNames;
+    private final List<List<String>> imageTags;
+    private final int[] unresolved;
+    private final int unresolvedCount;
+    private final long[] unresolvedRects;
+
+    private PendingTokens(PicasaIniParser parser) {
+      this.definitions = parser.definitions;
+      this.imageNames = parser.imageNames;
+      this.imageTags = parser.imageTags;
+      this.unresolved = parser.unresolved;
+      this.unresolvedCount = parser.unresolvedCount;
+      this.unresolvedRects = parser.unresolvedRects;
+    }
+
+    /**
+     * Swaps every album/face token for the plaintext name it was defined with, with a prefix
+     * marking it as a 'picasa meta' tag. This file's own definitions win, in case the same token
+     * was named differently somewhere else; the rest come from `registry`, which learns this
+     * file's definitions first. Tokens nobody has defined are dropped and reported to the registry,
+     * along with their faces.
+     * @param parsed the file as read, with its size, modification time and hash
+     * @param registry album/face names shared with the rest of the run
+     * @return a copy of `parsed`, with every image that still has tags, and their faces
+     */
+    PicasaIni resolve(PicasaIni parsed, TokenRegistry registry) {
+      // Album/face token -> 'pmeta/' tag, for everything defined in this file.
+      HashMap<String, String> picasaMetaTokens = new HashMap<>();
+      for (int i = 0; i < definitions.size(); i += 2) {
+        picasaMetaTokens.put(definitions.get(i), registry.intern(definitions.get(i + 1)));
+        registry.define(definitions.get(i), definitions.get(i + 1));
+      }
+      // Tag lists are copied so `parsed` stays as it was read.
+      List<List<String>> tags = new ArrayList<>(imageTags.size());
+      for (List<String> t : imageTags) {
+        tags.add(new ArrayList<>(t));
+      }
+
+      int dropped = 0;
+      // Faces whose person was found, as indexes into `unresolved` (halved), and the person's tag.
+      int[] faces = new int[unresolvedCount / 2];
+      String[] faceTags = new String[unresolvedCount / 2];
+      int faceCount = 0;
+      // Backwards, so dropping a tag doesn't move the ones still to be done on the same image.
+      for (int i = unresolvedCount - 2; i >= 0; i -= 2) {
+        List<String> t = tags.get(unresolved[i]);
+        int pos = unresolved[i + 1];
+        String token = t.get(pos);
+        String tag = picasaMetaTokens.get(token);
+        if (tag == null) {
+          tag = registry.resolve(token);
+        }
+        if (tag != null) {
+          t.set(pos, tag);
+          if (unresolvedRects[i / 2] != 0) {
+            faces[faceCount] = i / 2;
+            faceTags[faceCount++] = tag;
+          }
+        } else {
+          registry.unresolved(token);
+          t.remove(pos);
+          dropped++;
+        }
+      }
+      PicasaIni ini = new PicasaIni(parsed.getIniPath());
+      ini.setFileState(parsed.getSize(), parsed.getModified(), parsed.getHash());
+      PicasaIni.Entry[] entries = new PicasaIni.Entry[imageNames.size()];
+      for (int i = 0; i < imageNames.size(); i++) {
+        entries[i] = ini.add(imageNames.get(i), tags.get(i));
+      }
+      // Found backwards, so put them on in reverse to keep them in the order they were written.
+      for (int f = faceCount - 1; f >= 0; f--) {
+        entries[unresolved[faces[f] * 2]].addFace(faceTags[f], unresolvedRects[faces[f]]);
+      }
+      ini.setUnresolvedTokens(dropped);
+      return ini;
+    }
+  }
+
+  /**
+   * Trawls the Picasa ini file `f` and collects the tags for all images listed in it. If
+   * `tagPMeta` is true, images also get tags for the Picasa albums they're in and the people
+   * facetagged in them.
+   * @param f the .picasa.ini file to read
+   * @param tagPMeta boolean flag, whether to include Picasa album and face tags
+   * @return the images in `f` and their tags
+   * @throws FileNotFoundException if `f` doesn't exist
+   */
+  public static PicasaIni parse(File f, boolean tagPMeta) throws FileNotFoundException {
+    return parse(f, tagPMeta, false);
+  }
+
+  /**
+   * Same as parse(File, boolean), but also records the file's size and modification time, and
+   * optionally a hash of its contents, on the result.
+   * @param f the .picasa.ini file to read
+   * @param tagPMeta boolean flag, whether to include Picasa album and face tags
+   * @param computeHash boolean flag, whether to hash the file's contents while reading it
+   * @return the images in `f` and their tags
+   * @throws FileNotFoundException if `f` doesn't exist
+   */
+  public static PicasaIni parse(File f, boolean tagPMeta, boolean computeHash) throws FileNotFoundException {
+    return parse(f, tagPMeta, computeHash, new TokenRegistry());
+  }
+
+  /**
+   * Same as parse(File, boolean, boolean), but album and face tokens this file doesn't define are
+   * looked up in `registry`, and the ones it does define are added to it.
+   * @param f the .picasa.ini file to read
+   * @param tagPMeta boolean flag, whether to include Picasa album and face tags
+   * @param computeHash boolean flag, whether to hash the file's contents while reading it
+   * @param registry album/face names shared with the rest of the run
+   * @return the images in `f` and their tags
+   * @throws FileNotFoundException if `f` doesn't exist
+   */
+  public static PicasaIni parse(File f, boolean tagPMeta, boolean computeHash, TokenRegistry registry)
+          throws FileNotFoundException {
+    return parseUnresolved(f, tagPMeta, computeHash).resolve(registry);
+  }
+
+  /**
+   * Same as parse(File, boolean, boolean), but album and face tokens are left for
+   * PicasaIni.resolve() to swap for names. Doesn't touch any TokenRegistry, so it's safe on any
+   * thread without changing what a run does.
+   * @param f the .picasa.ini file to read
+   * @param tagPMeta boolean flag, whether to include Picasa album and face tags
+   * @param computeHash boolean flag, whether to hash the file's contents while reading it
+   * @return the images in `f` and their tags, still to be resolved
+   * @throws FileNotFoundException if `f` doesn't exist
+   */
+  public static PicasaIni parseUnresolved(File f, boolean tagPMeta, boolean computeHash)
+          throws FileNotFoundException {
+    PicasaIniParser parser = new PicasaIniParser(f.getPath(), tagPMeta);
+    // Grab these before reading, so an edit halfway through makes the next run look again.
+    long size = f.length();
+    long modified = f.lastModified();
+    MessageDigest digest = computeHash ? newDigest() : null;
+    InputStream raw = new FileInputStream(f);
+    if (digest != null) {
+      raw = new DigestInputStream(raw, digest);
+    }
+    // Same charset Scanner used to read these with.
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(raw, Charset.defaultCharset()))) {
+      parser.read(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    parser.ini.setFileState(size, modified, digest == null ? null : toHex(digest.digest()));
+    return parser.ini;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM is required to have SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Same as parse(File, boolean), for an ini file that's already open. Mostly useful for testing
+   * and benchmarking without going to disk.
+   * @param in a reader pointed at the beginning of a .picasa.ini file
+   * @param iniPath where the file came from, for reporting
+   * @param tagPMeta boolean flag, whether to include Picasa album and face tags
+   * @return the images in the file and their tags
+   * @throws IOException if reading fails
+   */
+  public static PicasaIni parse(BufferedReader in, String iniPath, boolean tagPMeta) throws IOException {
+    PicasaIniParser parser = new PicasaIniParser(iniPath, tagPMeta);
+    parser.read(in);
+    return parser.ini.resolve(new TokenRegistry());
+  }
+
+  private void read(BufferedReader in) throws IOException {
+    // The ini file is a plaintext series of lines. An image name in brackets will be followed by
+    // various attributes on their own lines. The ones we care about are 'keywords=' followed by a
+    // comma-delimited list of tags, and (optionally) 'albums=' and 'faces='. I am *reasonably* sure
+    // 'keywords' always comes first, but not completely certain. To be safe, we'll assume it might
+    // not.
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (line.charAt(0) == '[') {
+        endSection();
+        startSection(line);
+        continue;
+      }
+      switch (section) {
+        case SECTION_IMAGE:
+          readImageLine(line);
+          break;
+        case SECTION_ALBUM:
+          readAlbumLine(line);
+          break;
+        case SECTION_CONTACTS:
+          readContactLine(line);
+          break;
+        default:
+          // Anything before the first section doesn't belong to an image.
+          break;
+      }
+    }
+    // The last section in the file doesn't have another header after it to end it.
+    endSection();
+    finish();
+  }
+
+  private void startSection(String header) {
+    if (header.startsWith(ALBUM_SECTION)) {
+      /*
+       * Example input:
+       * [.album:ca7ebf894b2735c6f8bed85e4eadc9f5]
+       * name=debug-album
+       * token=ca7ebf894b2735c6f8bed85e4eadc9f5
+       * date=2022-08-23T13:44:49-07:00
+       *
+       * However, Picasa can also generate 'phantom' albums with no name or date that aren't used?
+       * Great. Thanks. So we need to be prepared for that.
+       */
+      // Without -m nobody needs the names, so the section isn't worth reading.
+      section = tagPMeta ? SECTION_ALBUM : SECTION_NONE;
+      albumName = null;
+      albumToken = null;
+    }
+    else if (header.equals(CONTACTS_SECTION)) {
+      /*
+       * Example input:
+       * [Contacts2]
+       * 461691f5081b1d22=debug-peser;;
+       * f4b185d2a7bfac7d=debug-yoshi;;
+       */
+      section = tagPMeta ? SECTION_CONTACTS : SECTION_NONE;
+    }
+    else {
+      // Strip the brackets off it to get the image name.
+      int end = header.lastIndexOf(']');
+      section = SECTION_IMAGE;
+      imageName = header.substring(1, end > 0 ? end : header.length());
+      tags = new ArrayList<>(4);
+    }
+  }
+
+  private void endSection() {
+    if (section == SECTION_IMAGE) {
+      if (!tags.isEmpty()) {
+        imageNames.add(imageName);
+        imageTags.add(tags);
+      }
+      imageName = null;
+      tags = null;
+    }
+    else if (section == SECTION_ALBUM) {
+      // If this is a 'phantom' album, there's nothing worth saving.
+      if (albumName != null && albumToken != null) {
+        define(albumToken, albumName); // we'll want to find name using token
+      }
+    }
+    section = SECTION_NONE;
+  }
+
+  private void readAlbumLine(String line) {
+    if (line.startsWith("name=")) {
+      albumName = line.substring(5);
+    }
+    else if (line.startsWith("token=")) {
+      albumToken = line.substring(6);
+    }
+  }
+
+  private void readContactLine(String line) {
+    int eq = line.indexOf('=');
+    if (eq < 0) {
+      return;
+    }
+    int semi = line.indexOf(';', eq + 1);
+    define(line.substring(0, eq), line.substring(eq + 1, semi < 0 ? line.length() : semi));
+  }
+
+  private void define(String token, String name) {
+    definitions.add(token);
+    definitions.add(name);
+  }
+
+  private void readImageLine(String line) {
+    if (line.startsWith("keywords")) {
+      unpackTags(line);
+    }
+    else if (tagPMeta && line.startsWith("albums")) {
+      unpackAlbums(line);
+    }
+    else if (tagPMeta && line.startsWith("faces")) {
+      unpackFaces(line);
+    }
+  }
+
+  /**
+   * Example input:
+   * keywords=interior design,minecraft
+   *
+   * Peels a 'keywords' line of the ini file apart into comma-delimited tags.
+   */
+  private void unpackTags(String line) {
+    int start = line.indexOf('=') + 1;
+    if (start == 0) {
+      return;
+    }
+    while (start <= line.length()) {
+      int comma = line.indexOf(',', start);
+      int end = comma < 0 ? line.length() : comma;
+      // Picasa doesn't write empty keywords, but a hand-edited file might; they'd only make a
+      // tag with no name.
+      if (end > start) {
+        tags.add(line.substring(start, end));
+      }
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Example input:
+   * albums=953fc0ee97037ec68789367577cd3dbf,e293cfc3ccf741306c52a577562455ee
+   * (...where the ini file also includes information on the albums those IDs correspond to)
+   *
+   * Notes down each album token on the current image, to be swapped for the album's name later.
+   */
+  private void unpackAlbums(String line) {
+    int start = line.indexOf('=') + 1;
+    if (start == 0) {
+      return;
+    }
+    while (start <= line.length()) {
+      int comma = line.indexOf(',', start);
+      int end = comma < 0 ? line.length() : comma;
+      if (end > start) {
+        addToken(line.substring(start, end));
+      }
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Example input:
+   * faces=rect64(1c863ab430a462a5),7765103530c632d3;rect64(44633848593c6170),1b5634af99e8c7e2
+   * (the second token in each pair is the person; the rect64 is where their face is)
+   *
+   * Notes down the person token from each face on the current image, to be swapped for the
+   * person's name later, along with the face's rectangle.
+   */
+  private void unpackFaces(String line) {
+    int start = line.indexOf('=') + 1;
+    if (start == 0) {
+      return;
+    }
+    // Semicolons separate the 'rect64(#),token' pairs; we want everything after each comma.
+    while (start <= line.length()) {
+      int semi = line.indexOf(';', start);
+      int end = semi < 0 ? line.length() : semi;
+      int comma = line.indexOf(',', start);
+      int tokenStart = comma >= 0 && comma < end ? comma + 1 : start;
+      if (end > tokenStart) {
+        long rect = tokenStart > start ? parseRect64(line, start, tokenStart - 1) : 0;
+        addToken(line.substring(tokenStart, end), rect);
+      }
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Reads the number out of 'rect64(1c863ab430a462a5)' in line[from, to), straight from the line.
+   * Picasa leaves off leading zeros, so it can be fewer than 16 digits.
+   * @return the packed rectangle, or 0 if it isn't one
+   */
+  static long parseRect64(String line, int from, int to) {
+    final String prefix = "rect64(";
+    if (!line.startsWith(prefix, from)) {
+      return 0;
+    }
+    long rect = 0;
+    int digits = 0;
+    for (int i = from + prefix.length(); i < to && line.charAt(i) != ')'; i++) {
+      int digit = Character.digit(line.charAt(i), 16);
+      if (digit < 0 || ++digits > 16) {
+        return 0;
+      }
+      rect = (rect << 4) | digit;
+    }
+    return rect;
+  }
+
+  private void addToken(String token) {
+    addToken(token, 0);
+  }
+
+  private void addToken(String token, long rect) {
+    if (unresolvedCount + 2 > unresolved.length) {
+      unresolved = Arrays.copyOf(unresolved, unresolved.length * 2);
+      unresolvedRects = Arrays.copyOf(unresolvedRects, unresolved.length / 2);
+    }
+    unresolvedRects[unresolvedCount / 2] = rect;
+    // The current image's tag list gets added to imageTags when its section ends, so it'll be at
+    // this index.
+    unresolved[unresolvedCount++] = imageTags.size();
+    unresolved[unresolvedCount++] = tags.size();
+    tags.add(token);
+  }
+
+  /**
+   * Puts every image with tags into the PicasaIni. If there are tokens to swap for names (or names
+   * other files might need), that's left for resolve(), and they go in then instead.
+   */
+  private void finish() {
+    if (unresolvedCount > 0 || !definitions.isEmpty()) {
+      ini.setPendingTokens(new PendingTokens(this));
+    } else {
+      for (int i = 0; i < imageNames.size(); i++) {
+        ini.add(imageNames.get(i), imageTags.get(i));
+      }
+    }
+    imageNames = null;
+    imageTags = null;
+  }
+}
@@ -0,0 +1,131 @@
+package kahla;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+/**
+ * Tags out of the .picasa.ini files in a folder tree. Folders are found with a DirectoryWalker and
+ * each ini file is read with PicasaIniParser; neither keeps any state between folders, so any
+ * number of threads can read at once. Album and face tokens are only looked up in the
+ * TokenRegistry afterwards, in resolve(), in walk order.
+ */
+public class PicasaIniSource implements TagSource {
+  private static final String INI_NAME = ".picasa.ini";
+
+  private final String imageDir;
+  private final DirectoryWalker.Filter filter;
+  private final boolean tagPMeta;
+  // Album/face names from every file read so far.
+  private final TokenRegistry tokens;
+  // With --manifest, files other jobs have already parsed. Null otherwise.
+  private IniCache cache;
+  private String cacheDatabase;
+
+  /**
+   * @param imageDir the formatted user-provided directory to trawl for images
+   * @param filter which folders under imageDir to look in
+   * @param tagPMeta boolean flag, whether to tag files with associated Picasa albums and face tags
+   */
+  public PicasaIniSource(String imageDir, DirectoryWalker.Filter filter, boolean tagPMeta) {
+    this(imageDir, filter, tagPMeta, new TokenRegistry());
+  }
+
+  /**
+   * @param imageDir the formatted user-provided directory to trawl for images
+   * @param filter which folders under imageDir to look in
+   * @param tagPMeta boolean flag, whether to tag files with associated Picasa albums and face tags
+   * @param tokens album/face names to look up tokens a file doesn't define itself in, possibly
+   *               seeded from Picasa's own database; every name read gets added to it
+   */
+  public PicasaIniSource(String imageDir, DirectoryWalker.Filter filter, boolean tagPMeta, TokenRegistry tokens) {
+    this.imageDir = imageDir;
+    this.filter = filter;
+    this.tagPMeta = tagPMeta;
+    this.tokens = tokens;
+  }
+
+  /**
+   * @param cache parsed files to share with other jobs reading the same folders; it has to have
+   *              been set up with this source's -m setting
+   * @param database which database this source's tags go into, as the cache was told
+   */
+  public void setCache(IniCache cache, String database) {
+    this.cache = cache;
+    this.cacheDatabase = database;
+  }
+
+  @Override
+  public Iterator<String> directories(TagSink sink) {
+    return new DirectoryWalker(imageDir, sink, filter);
+  }
+
+  /**
+   * Same walk as directories(), without the messages about skipped folders. It only lists folders
+   * the OS has probably just cached for the real walk anyway.
+   */
+  @Override
+  public long countDirectories(TagSink sink) {
+    DirectoryWalker walker = new DirectoryWalker(imageDir, sink, filter);
+    walker.setReportSkips(false);
+    long count = 0;
+    while (walker.hasNext()) {
+      walker.next();
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Reads and parses the picasa.ini in `directory`, if there is one.
+   * @return the parsed ini file, or null if this directory doesn't have one
+   */
+  @Override
+  public PicasaIni read(String directory, TagSink sink, RunMetrics metrics) {
+    long t = metrics.start();
+    File f = new File(directory+"/"+INI_NAME);
+    // If the sink says it's already done this exact file, don't even read it.
+    if (sink.isUnchanged(f.getPath(), f.length(), f.lastModified())) {
+      metrics.stop(RunMetrics.Phase.INI_READ, t);
+      return PicasaIni.unchanged(f.getPath());
+    }
+    metrics.stop(RunMetrics.Phase.INI_READ, t);
+    // The file is read and parsed in the same pass, so this counts the reading too.
+    t = metrics.start();
+    try {
+      return cache != null ? cache.parse(f, cacheDatabase, tagPMeta, metrics)
+              : PicasaIniParser.parseUnresolved(f, tagPMeta, sink.tracksFiles());
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (UncheckedIOException e) {
+      // Locked by Picasa, or on a drive that went away; either way, same as not having one.
+      System.out.println("Couldn't read the picasa.ini in "+directory+". Skipping it.");
+      e.getCause().printStackTrace();
+      return null;
+    } finally {
+      metrics.stop(RunMetrics.Phase.PARSE, t);
+    }
+  }
+
+  /**
+   * Swaps the file's album and face tokens for names, using (and adding to) the registry.
+   */
+  @Override
+  public PicasaIni resolve(PicasaIni ini, RunMetrics metrics) {
+    PicasaIni resolved = ini.resolve(tokens);
+    metrics.count(RunMetrics.Counter.TOKENS_UNRESOLVED, resolved.getUnresolvedTokens());
+    return resolved;
+  }
+
+  @Override
+  public IniWatcher watch(TagSink sink) throws IOException {
+    return new IniWatcher(imageDir, filter, sink);
+  }
+
+  @Override
+  public String summary() {
+    return tokens.summary();
+  }
+}
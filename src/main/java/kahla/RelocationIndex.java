@@ -0,0 +1,187 @@
+package kahla;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * Every image DigiKam knows about, by file name, for finding images that have moved since Picasa
+ * tagged them. picasa.ini only knows an image by its name in that one folder, so if the file was
+ * reorganized into a different folder afterwards, the only thing left to go on is the name (and
+ * the file's size, if there's still a copy where picasa.ini says it is).
+ *
+ * The whole Images table is read once, in one query, and kept in flat arrays instead of a
+ * HashMap of Strings: names are stored back to back as UTF-8 in one byte array, and the hash
+ * table is an array of chain heads plus a 'next' array. That's around 40 bytes an image, so a
+ * few million images is a hundred-odd MB.
+ *
+ * If a name turns up more than once and the size can't narrow it down to one, find() says so
+ * instead of picking one; tagging the wrong photo is worse than not tagging it. The same goes for a
+ * name that only turns up once, if we know the size and it's a different one: camera names like
+ * IMG_0001.JPG repeat across all sorts of unrelated photos.
+ */
+public class RelocationIndex {
+  // What find() says when there's no image by that name, or no single one that's certainly it.
+  public static final int NOT_FOUND = -1;
+  public static final int AMBIGUOUS = -2;
+
+  // Images without an album have been deleted in DigiKam, so there's nothing to tag.
+  private static final String QUERY_ALL_IMAGES = "SELECT id, album, name, fileSize FROM Images " +
+          "WHERE album IS NOT NULL";
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private int size = 0;
+  private int[] ids = new int[INITIAL_CAPACITY];
+  private int[] albums = new int[INITIAL_CAPACITY];
+  private long[] fileSizes = new long[INITIAL_CAPACITY];
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  // Image i's name is names[nameStart[i] .. nameStart[i + 1]).
+  private int[] nameStart = new int[INITIAL_CAPACITY + 1];
+  private byte[] names = new byte[INITIAL_CAPACITY * 16];
+  private int namesSize = 0;
+
+  // The hash table: heads[hash & mask] is the first image with that hash (plus one, so 0 can mean
+  // empty), and next[i] is the one after image i.
+  private int[] heads;
+  private int[] next;
+  private int mask;
+
+  /**
+   * Reads every image out of DigiKam's Images table.
+   * @param conn an open connection to DigiKam's database
+   * @throws SQLException if the query fails
+   */
+  public RelocationIndex(Connection conn) throws SQLException {
+    try (Statement st = conn.createStatement();
+         ResultSet res = st.executeQuery(QUERY_ALL_IMAGES)) {
+      while (res.next()) {
+        add(res.getInt(1), res.getInt(2), res.getString(3), res.getLong(4));
+      }
+    }
+    buildTable();
+  }
+
+  /**
+   * @return how many images are in the index
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Looks for an image called `name` anywhere but `excludeAlbum`.
+   * @param name the file name, as written in picasa.ini
+   * @param excludeAlbum the album the image was expected in (and wasn't), or -1
+   * @param fileSize the size of the file picasa.ini's folder still has by that name, or 0 if it
+   *                 doesn't have one; used to tell apart images with the same name
+   * @return the image's ID, NOT_FOUND if there's no image by that name, or AMBIGUOUS if there's
+   * more than one and `fileSize` doesn't settle it, or `fileSize` rules out the only one there is
+   */
+  public int find(String name, int excludeAlbum, long fileSize) {
+    byte[] key = name.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(key, 0, key.length);
+    int found = NOT_FOUND;
+    int matches = 0;
+    int sizeMatches = 0;
+    int sizeFound = NOT_FOUND;
+    for (int i = heads[hash & mask] - 1; i >= 0; i = next[i]) {
+      if (hashes[i] != hash || albums[i] == excludeAlbum || !nameEquals(i, key)) {
+        continue;
+      }
+      matches++;
+      found = ids[i];
+      if (fileSize > 0 && fileSizes[i] == fileSize) {
+        sizeMatches++;
+        sizeFound = ids[i];
+      }
+    }
+    if (matches == 0) {
+      return NOT_FOUND;
+    }
+    // Without a size to go on, a name only one image has is the best there is.
+    if (fileSize <= 0) {
+      return matches == 1 ? found : AMBIGUOUS;
+    }
+    return sizeMatches == 1 ? sizeFound : AMBIGUOUS;
+  }
+
+  private void add(int id, int album, String name, long fileSize) {
+    if (size == ids.length) {
+      // Grow by half, same as PairBuffer.
+      int capacity = ids.length + (ids.length >> 1);
+      ids = Arrays.copyOf(ids, capacity);
+      albums = Arrays.copyOf(albums, capacity);
+      fileSizes = Arrays.copyOf(fileSizes, capacity);
+      hashes = Arrays.copyOf(hashes, capacity);
+      nameStart = Arrays.copyOf(nameStart, capacity + 1);
+    }
+    byte[] bytes = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+    if (namesSize + bytes.length > names.length) {
+      names = Arrays.copyOf(names, Math.max(names.length + (names.length >> 1), namesSize + bytes.length));
+    }
+    System.arraycopy(bytes, 0, names, namesSize, bytes.length);
+    ids[size] = id;
+    albums[size] = album;
+    fileSizes[size] = fileSize;
+    hashes[size] = hash(bytes, 0, bytes.length);
+    nameStart[size] = namesSize;
+    namesSize += bytes.length;
+    nameStart[size + 1] = namesSize;
+    size++;
+  }
+
+  /**
+   * Chains every image into the hash table, and gives back what the arrays grew by that we won't
+   * be needing.
+   */
+  private void buildTable() {
+    ids = Arrays.copyOf(ids, size);
+    albums = Arrays.copyOf(albums, size);
+    fileSizes = Arrays.copyOf(fileSizes, size);
+    hashes = Arrays.copyOf(hashes, size);
+    nameStart = Arrays.copyOf(nameStart, size + 1);
+    names = Arrays.copyOf(names, namesSize);
+
+    // At least twice as many slots as images, rounded up to a power of two, keeps chains short.
+    int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+    heads = new int[capacity];
+    next = new int[size];
+    mask = capacity - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hashes[i] & mask;
+      next[i] = heads[slot] - 1;
+      heads[slot] = i + 1;
+    }
+  }
+
+  private boolean nameEquals(int i, byte[] key) {
+    int start = nameStart[i];
+    int length = nameStart[i + 1] - start;
+    if (length != key.length) {
+      return false;
+    }
+    for (int j = 0; j < length; j++) {
+      if (names[start + j] != key[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * FNV-1a, with the bits mixed up a little more at the end since the table only looks at the low
+   * ones.
+   */
+  private static int hash(byte[] bytes, int from, int to) {
+    int h = 0x811c9dc5;
+    for (int i = from; i < to; i++) {
+      h ^= bytes[i];
+      h *= 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+}
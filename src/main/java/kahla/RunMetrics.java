@@ -0,0 +1,424 @@
+package kahla;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Counts and timings for an import, so a run over a huge tree can be followed (and picked apart
+ * afterwards) without scrolling through a line per folder.
+ *
+ * Every phase of the work gets a count, a total and a histogram of how long each go at it took.
+ * The same numbers also go out as JDK Flight Recorder events: one per folder and one for the whole
+ * run, plus one per timed step if you switch kahla.Phase on (it's off by default, since it fires
+ * for every tag). Ini files get read on worker threads, so all of this is safe to update from
+ * anywhere.
+ */
+public class RunMetrics {
+  /**
+   * The steps of an import that get timed.
+   */
+  public enum Phase {
+    WALK("walk"),
+    INI_READ("iniRead"),
+    PARSE("parse"),
+    ALBUM_RESOLVE("albumResolve"),
+    IMAGE_RESOLVE("imageResolve"),
+    TAG_RESOLVE("tagResolve"),
+    TAG_CREATE("tagCreate"),
+    INSERT("insert"),
+    // Indexing the whole Images table, and looking up images that moved, with --relocate.
+    RELOCATE("relocate"),
+    // Putting together one .xmp sidecar and writing it out, with --export-xmp.
+    SIDECAR_WRITE("sidecarWrite"),
+    // From the first time the database said it was busy until it let us through (or we gave up).
+    LOCK_WAIT("lockWait");
+
+    private final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+  }
+
+  /**
+   * Things that get counted.
+   */
+  public enum Counter {
+    DIRECTORIES("directories"),
+    DIRECTORIES_UNCHANGED("directoriesUnchanged"),
+    DIRECTORIES_ROLLED_BACK("directoriesRolledBack"),
+    DIRECTORIES_RETRIED("directoriesRetried"),
+    DIRECTORIES_FAILED("directoriesFailed"),
+    IMAGES_TAGGED("imagesTagged"),
+    IMAGES_SKIPPED("imagesSkipped"),
+    IMAGES_RELOCATED("imagesRelocated"),
+    IMAGES_AMBIGUOUS("imagesAmbiguous"),
+    IMAGE_TAGS("imageTags"),
+    TAGS_CREATED("tagsCreated"),
+    FACE_REGIONS("faceRegions"),
+    FACE_REGIONS_SKIPPED("faceRegionsSkipped"),
+    TOKENS_UNRESOLVED("tokensUnresolved"),
+    INI_CACHE_HITS("iniCacheHits"),
+    SIDECARS_WRITTEN("sidecarsWritten"),
+    SIDECARS_UNCHANGED("sidecarsUnchanged"),
+    SIDECARS_FOREIGN("sidecarsForeign"),
+    SIDECARS_FAILED("sidecarsFailed"),
+    BUSY_RETRIES("busyRetries"),
+    LOCK_TIMEOUTS("lockTimeouts");
+
+    private final String label;
+
+    Counter(String label) {
+      this.label = label;
+    }
+  }
+
+  @Name("kahla.Phase")
+  @Label("Kahla Phase")
+  @Category("Kahla")
+  @Description("One timed step of an import.")
+  @Enabled(false)
+  @StackTrace(false)
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+    @Label("Time Taken")
+    @Timespan(Timespan.NANOSECONDS)
+    long nanos;
+  }
+
+  @Name("kahla.Directory")
+  @Label("Kahla Directory")
+  @Category("Kahla")
+  @Description("Tagging everything in one folder's picasa.ini.")
+  @StackTrace(false)
+  static class DirectoryEvent extends Event {
+    @Label("Directory")
+    String directory;
+    @Label("Images Tagged")
+    int imagesTagged;
+    @Label("Images Skipped")
+    int imagesSkipped;
+    @Label("Image Tags Queued")
+    int imageTags;
+    @Label("Retry")
+    @Description("Whether this is a second go at a folder that failed earlier in the run.")
+    boolean retry;
+  }
+
+  @Name("kahla.Run")
+  @Label("Kahla Run")
+  @Category("Kahla")
+  @Description("Totals for a whole import.")
+  @StackTrace(false)
+  static class RunEvent extends Event {
+    @Label("Directories")
+    long directories;
+    @Label("Images Tagged")
+    long imagesTagged;
+    @Label("Images Skipped")
+    long imagesSkipped;
+    @Label("Image Tags Queued")
+    long imageTags;
+    @Label("Tags Created")
+    long tagsCreated;
+    @Label("Busy Retries")
+    long busyRetries;
+    @Label("Lock Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long lockWaitNanos;
+  }
+
+  // Histogram buckets are powers of two: bucket b holds times in [2^(b-1), 2^b) nanoseconds.
+  private static final int BUCKETS = 64;
+
+  private final LongAdder[] phaseCounts = new LongAdder[Phase.values().length];
+  private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+  private final LongAccumulator[] phaseMax = new LongAccumulator[Phase.values().length];
+  private final AtomicLongArray histograms = new AtomicLongArray(Phase.values().length * BUCKETS);
+  private final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+  private final long started = System.nanoTime();
+  // How many folders the walk will turn up, once something has counted them. -1 until then.
+  private volatile long expectedDirectories = -1;
+  private ScheduledExecutorService progress;
+  // Which run the progress line is about, when there's more than one going at once.
+  private volatile String label;
+
+  public RunMetrics() {
+    for (int i = 0; i < phaseCounts.length; i++) {
+      phaseCounts[i] = new LongAdder();
+      phaseNanos[i] = new LongAdder();
+      phaseMax[i] = new LongAccumulator(Math::max, 0);
+    }
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @return a timestamp to hand to stop() once the step is done
+   */
+  public long start() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Records one go at `phase` that began at `startNanos`.
+   * @param phase what was being done
+   * @param startNanos what start() returned beforehand
+   */
+  public void stop(Phase phase, long startNanos) {
+    long nanos = System.nanoTime() - startNanos;
+    int p = phase.ordinal();
+    phaseCounts[p].increment();
+    phaseNanos[p].add(nanos);
+    phaseMax[p].accumulate(nanos);
+    histograms.incrementAndGet(p * BUCKETS + Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+
+    PhaseEvent event = new PhaseEvent();
+    if (event.isEnabled()) {
+      event.phase = phase.label;
+      event.nanos = nanos;
+      event.commit();
+    }
+  }
+
+  public void count(Counter counter, long n) {
+    counters[counter.ordinal()].add(n);
+  }
+
+  /**
+   * @return how many of `counter` there have been so far
+   */
+  public long get(Counter counter) {
+    return counters[counter.ordinal()].sum();
+  }
+
+  /**
+   * @return how long all the goes at `phase` took between them, in nanoseconds
+   */
+  public long totalNanos(Phase phase) {
+    return phaseNanos[phase.ordinal()].sum();
+  }
+
+  /**
+   * @return how long it's been since these metrics were started, in nanoseconds
+   */
+  public long elapsedNanos() {
+    return System.nanoTime() - started;
+  }
+
+  /**
+   * Wraps `dirs` so the time spent finding the next folder counts as walking.
+   */
+  public Iterator<String> timeWalk(Iterator<String> dirs) {
+    return new Iterator<String>() {
+      @Override
+      public boolean hasNext() {
+        long t = start();
+        boolean hasNext = dirs.hasNext();
+        stop(Phase.WALK, t);
+        return hasNext;
+      }
+
+      @Override
+      public String next() {
+        return dirs.next();
+      }
+    };
+  }
+
+  /**
+   * Starts tallying a folder. Fill in the counts on the returned event, then pass it to
+   * endDirectory().
+   * @param dir the folder being tagged
+   */
+  DirectoryEvent beginDirectory(String dir) {
+    DirectoryEvent event = new DirectoryEvent();
+    event.begin();
+    event.directory = dir;
+    return event;
+  }
+
+  /**
+   * Adds a folder's counts to the run's and sends its event off to Flight Recorder. A retried
+   * folder was already counted the first time round, so it only counts as a retry.
+   */
+  void endDirectory(DirectoryEvent event) {
+    event.end();
+    count(event.retry ? Counter.DIRECTORIES_RETRIED : Counter.DIRECTORIES, 1);
+    count(Counter.IMAGES_TAGGED, event.imagesTagged);
+    count(Counter.IMAGES_SKIPPED, event.imagesSkipped);
+    count(Counter.IMAGE_TAGS, event.imageTags);
+    if (event.shouldCommit()) {
+      event.commit();
+    }
+  }
+
+  public void setExpectedDirectories(long expectedDirectories) {
+    this.expectedDirectories = expectedDirectories;
+  }
+
+  /**
+   * @param label a name to start every progress line with, or null for none
+   */
+  public void setLabel(String label) {
+    this.label = label;
+  }
+
+  /**
+   * Prints a progress line every `intervalSeconds` until stopProgress() is called.
+   */
+  public void startProgress(long intervalSeconds) {
+    progress = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "kahla-progress");
+      t.setDaemon(true);
+      return t;
+    });
+    progress.scheduleAtFixedRate(() -> System.out.println(progressLine()),
+            intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stopProgress() {
+    if (progress != null) {
+      progress.shutdownNow();
+      progress = null;
+    }
+  }
+
+  /**
+   * @return how far along we are, how fast it's going and (if the folders have been counted) how
+   * long is left
+   */
+  String progressLine() {
+    double seconds = (System.nanoTime() - started) / 1e9;
+    long done = counters[Counter.DIRECTORIES.ordinal()].sum();
+    long images = counters[Counter.IMAGES_TAGGED.ordinal()].sum();
+    long expected = expectedDirectories;
+    String line = (label != null ? "["+label+"] " : "")+"Progress: "+done+(expected >= 0 ? "/"+expected : "")+" folders, "+images+" images ("
+            +Math.round(images / Math.max(seconds, 0.001))+" images/s)";
+    if (expected < 0) {
+      return line+", still counting folders.";
+    }
+    if (done == 0) {
+      return line+".";
+    }
+    long eta = Math.round(seconds * Math.max(0, expected - done) / done);
+    return line+", ETA "+String.format("%dh %02dm %02ds", eta / 3600, eta / 60 % 60, eta % 60)+".";
+  }
+
+  /**
+   * @return a one-line summary for the console, and sends the run's totals off to Flight Recorder
+   */
+  public String finish() {
+    stopProgress();
+    RunEvent event = new RunEvent();
+    event.directories = counters[Counter.DIRECTORIES.ordinal()].sum();
+    event.imagesTagged = counters[Counter.IMAGES_TAGGED.ordinal()].sum();
+    event.imagesSkipped = counters[Counter.IMAGES_SKIPPED.ordinal()].sum();
+    event.imageTags = counters[Counter.IMAGE_TAGS.ordinal()].sum();
+    event.tagsCreated = counters[Counter.TAGS_CREATED.ordinal()].sum();
+    event.busyRetries = counters[Counter.BUSY_RETRIES.ordinal()].sum();
+    event.lockWaitNanos = phaseNanos[Phase.LOCK_WAIT.ordinal()].sum();
+    event.commit();
+    return summary();
+  }
+
+  /**
+   * @return a one-line summary of everything so far, for the console. Unlike finish(), this can be
+   * called as often as you like; nothing goes to Flight Recorder.
+   */
+  public String summary() {
+    long imagesTagged = get(Counter.IMAGES_TAGGED);
+    long busyRetries = get(Counter.BUSY_RETRIES);
+    double seconds = (System.nanoTime() - started) / 1e9;
+    String summary = get(Counter.DIRECTORIES)+" folders, "+imagesTagged+" images tagged ("
+            +Math.round(imagesTagged / Math.max(seconds, 0.001))+" images/s), "+get(Counter.IMAGE_TAGS)
+            +" image tags queued, "+get(Counter.TAGS_CREATED)+" tags created in "
+            +String.format("%.1f", seconds)+"s.";
+    if (busyRetries > 0) {
+      summary += " Waited "+String.format("%.1f", phaseNanos[Phase.LOCK_WAIT.ordinal()].sum() / 1e9)
+              +"s for the database to unlock ("+busyRetries+" retries).";
+    }
+    return summary;
+  }
+
+  /**
+   * Writes everything counted so far to `path` as JSON. Times are in microseconds. Percentiles
+   * come from the histograms, so they're only good to within a factor of two.
+   * @param path where to write the summary
+   * @throws IOException if the file can't be written
+   */
+  public void write(String path) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+      out.println("{");
+      out.println("  \"elapsedMillis\": "+(System.nanoTime() - started) / 1_000_000+",");
+      out.print("  \"counters\": {");
+      for (Counter c : Counter.values()) {
+        out.print((c.ordinal() == 0 ? "" : ", ")+"\""+c.label+"\": "+counters[c.ordinal()].sum());
+      }
+      out.println("},");
+      out.println("  \"phases\": {");
+      for (Phase phase : Phase.values()) {
+        int p = phase.ordinal();
+        long count = phaseCounts[p].sum();
+        long nanos = phaseNanos[p].sum();
+        out.print("    \""+phase.label+"\": {\"count\": "+count+", \"totalMicros\": "+nanos / 1000
+                +", \"meanMicros\": "+(count == 0 ? 0 : nanos / count / 1000)
+                +", \"p50Micros\": "+percentile(p, count, 0.5)+", \"p90Micros\": "+percentile(p, count, 0.9)
+                +", \"p99Micros\": "+percentile(p, count, 0.99)+", \"maxMicros\": "+phaseMax[p].get() / 1000
+                +", \"histogram\": [");
+        boolean first = true;
+        for (int b = 0; b < BUCKETS; b++) {
+          long n = histograms.get(p * BUCKETS + b);
+          if (n > 0) {
+            out.print((first ? "" : ", ")+"{\"underNanos\": "+(1L << Math.min(b, 62))+", \"count\": "+n+"}");
+            first = false;
+          }
+        }
+        out.println("]}"+(p < Phase.values().length - 1 ? "," : ""));
+      }
+      out.println("  }");
+      out.println("}");
+    }
+  }
+
+  /**
+   * @return roughly how long the slowest of the fastest `fraction` of goes at phase `p` took, in
+   * microseconds (the top of the histogram bucket it landed in)
+   */
+  private long percentile(int p, long count, double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    long target = (long) Math.ceil(count * fraction);
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += histograms.get(p * BUCKETS + b);
+      if (seen >= target) {
+        return Math.min(1L << Math.min(b, 62), phaseMax[p].get()) / 1000;
+      }
+    }
+    return phaseMax[p].get() / 1000;
+  }
+}
@@ -0,0 +1,195 @@
+package kahla;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A different way of running an import: instead of looking up every album, image and tag from Java
+ * and writing ImageTags a row at a time, every (folder, image, tag) out of the ini files goes into a
+ * TEMP table, and then a few INSERT ... SELECT statements let SQLite do all the matching up with
+ * joins. The end result in DigiKam's database is the same as the default engine's, down to which
+ * new tag gets which ID.
+ *
+ * Folder paths are split into album root and relative path on the way in (the drive letter
+ * business is much easier in Java), but matching those to albums, and everything after, is SQL.
+ *
+ * The staged rows are committed (TEMP tables aren't DigiKam's to lock) before anything touches
+ * DigiKam's tables, so if DigiKam turns out to have the database locked, the matching up and
+ * writing can be rolled back and run again as a whole.
+ */
+public class SqlImportEngine {
+  // How many staged rows go to the driver at once.
+  private static final int ROWS_PER_BATCH = 10_000;
+
+  private static final String QUERY_CREATE_STAGING = "CREATE TEMP TABLE kahla_staged ("
+          + "seq INTEGER PRIMARY KEY, rootPath TEXT NOT NULL, relativePath TEXT NOT NULL, "
+          + "imageName TEXT NOT NULL, tagName TEXT NOT NULL)";
+  private static final String QUERY_CREATE_RESOLVED = "CREATE TEMP TABLE kahla_resolved ("
+          + "seq INTEGER PRIMARY KEY, imageid INTEGER NOT NULL, tagName TEXT NOT NULL)";
+  private static final String QUERY_STAGE = "INSERT INTO temp.kahla_staged "
+          + "(rootPath, relativePath, imageName, tagName) VALUES (?, ?, ?, ?)";
+  // Staged rows whose image DigiKam knows. When a path is an album root more than once, the
+  // oldest root wins, same as AlbumResolver.
+  private static final String QUERY_RESOLVE_IMAGES = "INSERT INTO temp.kahla_resolved (seq, imageid, tagName) "
+          + "SELECT s.seq, i.id, s.tagName FROM temp.kahla_staged s "
+          + "JOIN Albums a ON a.albumRoot = (SELECT MIN(r.id) FROM AlbumRoots r WHERE r.specificPath = s.rootPath) "
+          + "AND a.relativePath = s.relativePath "
+          + "JOIN Images i ON i.album = a.id AND i.name = s.imageName";
+  // Tags are matched on name alone (like TagDictionary does), and new ones are created in the order
+  // they were first seen, so they get the same IDs the default engine would give them.
+  private static final String QUERY_CREATE_TAGS = "INSERT INTO Tags (pid, name) "
+          + "SELECT 0, tagName FROM temp.kahla_resolved "
+          + "WHERE tagName NOT IN (SELECT name FROM Tags) GROUP BY tagName ORDER BY MIN(seq)";
+  private static final String QUERY_TAG_IMAGES = "INSERT OR IGNORE INTO ImageTags (imageid, tagid) "
+          + "SELECT r.imageid, (SELECT MIN(t.id) FROM Tags t WHERE t.name = r.tagName) AS tagid "
+          + "FROM temp.kahla_resolved r ORDER BY 1, 2";
+  private static final String QUERY_COUNT_IMAGES = "SELECT "
+          + "(SELECT COUNT(*) FROM (SELECT DISTINCT rootPath, relativePath, imageName FROM temp.kahla_staged)), "
+          + "(SELECT COUNT(DISTINCT imageid) FROM temp.kahla_resolved)";
+
+  private final Connection conn;
+  private final AlbumResolver albums;
+  private final RunMetrics metrics;
+  private final BusyRetry retry;
+  private final PreparedStatement stage;
+  private int queued = 0;
+  private boolean failed = false;
+
+  /**
+   * Sets up the TEMP tables on `conn`. TEMP tables only live as long as the connection and are
+   * never seen by anything else.
+   * @param conn an open, writable connection to DigiKam's database
+   * @param albums used to split folder paths into album root and relative path
+   * @param metrics where to record how long each step takes
+   * @param retry how to wait out DigiKam when it has the database locked
+   * @throws SQLException if the tables can't be created
+   */
+  public SqlImportEngine(Connection conn, AlbumResolver albums, RunMetrics metrics, BusyRetry retry)
+          throws SQLException {
+    this.conn = conn;
+    this.albums = albums;
+    this.metrics = metrics;
+    this.retry = retry;
+    try (Statement st = conn.createStatement()) {
+      st.execute(QUERY_CREATE_STAGING);
+      st.execute(QUERY_CREATE_RESOLVED);
+    }
+    conn.setAutoCommit(false);
+    stage = conn.prepareStatement(QUERY_STAGE);
+  }
+
+  /**
+   * Stages every tag in `ini`. Only ever call this from the thread that owns the connection.
+   * @param currentDir the directory `ini` was read from
+   * @param ini the parsed picasa.ini for `currentDir`
+   * @param counts where to count what got staged
+   * @return false if staging failed
+   */
+  public boolean stage(String currentDir, PicasaIni ini, DirectoryCounts counts) {
+    String[] split = albums.split(currentDir);
+    if (split == null || failed) {
+      return !failed;
+    }
+    long t = metrics.start();
+    try {
+      for (PicasaIni.Entry entry : ini.getEntries()) {
+        // Nothing's matched to DigiKam's images until the end, so this counts every image staged.
+        counts.addImagesTagged(1);
+        for (String tag : entry.getTags()) {
+          // Every parameter gets set every time; the driver forgets them all after a batch.
+          stage.setString(1, split[0]);
+          stage.setString(2, split[1]);
+          stage.setString(3, entry.getImageName());
+          stage.setString(4, tag);
+          stage.addBatch();
+          counts.addImageTags(1);
+          if (++queued % ROWS_PER_BATCH == 0) {
+            stage.executeBatch();
+          }
+        }
+      }
+      return true;
+    } catch (SQLException throwables) {
+      System.out.println("Failed to stage the tags from "+ini.getIniPath()+". Nothing will be written.");
+      throwables.printStackTrace();
+      failed = true;
+      return false;
+    } finally {
+      metrics.stop(RunMetrics.Phase.INSERT, t);
+    }
+  }
+
+  /**
+   * Matches everything staged against DigiKam's tables and writes the result, all in one
+   * transaction. If anything fails, none of it is kept.
+   * @return true if everything was committed
+   */
+  public boolean finish() {
+    try (Statement st = conn.createStatement()) {
+      if (failed) {
+        throw new SQLException("Staging failed earlier in the run.");
+      }
+      stage.executeBatch();
+      stage.close();
+      conn.commit();
+
+      int[] written = retry.run(() -> apply(st), true);
+      int resolved = written[0];
+      int tagsCreated = written[1];
+      int tagged = written[2];
+
+      long images = 0;
+      long imagesFound = 0;
+      try (ResultSet res = st.executeQuery(QUERY_COUNT_IMAGES)) {
+        if (res.next()) {
+          images = res.getLong(1);
+          imagesFound = res.getLong(2);
+        }
+      }
+      retry.run(() -> {
+        conn.commit();
+        return null;
+      }, false);
+      metrics.count(RunMetrics.Counter.TAGS_CREATED, tagsCreated);
+      System.out.println("Matched "+resolved+" of "+queued+" image tags to images DigiKam knows ("
+              +imagesFound+" of "+images+" images). Created "+tagsCreated+" tags and added "+tagged
+              +" new image tags.");
+      st.execute("DROP TABLE temp.kahla_staged");
+      st.execute("DROP TABLE temp.kahla_resolved");
+      conn.setAutoCommit(true);
+      return true;
+    } catch (SQLException throwables) {
+      System.out.println("Failed to write the staged tags. Rolling everything back. (Is DigiKam open?)");
+      throwables.printStackTrace();
+      try {
+        conn.rollback();
+      } catch (SQLException e) {
+        System.out.println("Rollback failed too; the database may need to be restored from backup.");
+        e.printStackTrace();
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Matches up the staged rows and writes them to DigiKam's tables. Everything this does is
+   * undone by a rollback, so it can be run again from the top.
+   * @return how many rows were matched to images, how many tags were created and how many image
+   * tags were added
+   */
+  private int[] apply(Statement st) throws SQLException {
+    long t = metrics.start();
+    int resolved = st.executeUpdate(QUERY_RESOLVE_IMAGES);
+    metrics.stop(RunMetrics.Phase.IMAGE_RESOLVE, t);
+    t = metrics.start();
+    int tagsCreated = st.executeUpdate(QUERY_CREATE_TAGS);
+    metrics.stop(RunMetrics.Phase.TAG_CREATE, t);
+    t = metrics.start();
+    int tagged = st.executeUpdate(QUERY_TAG_IMAGES);
+    metrics.stop(RunMetrics.Phase.INSERT, t);
+    return new int[] {resolved, tagsCreated, tagged};
+  }
+}
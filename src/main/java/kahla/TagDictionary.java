@@ -0,0 +1,155 @@
+package kahla;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory copy of DigiKam's Tags table, as a map of tag name to tag ID. Picasa keywords repeat
+ * across thousands of images, so rather than asking the database about the same tag over and over,
+ * we read the whole table once and only touch SQL again when a tag is brand new.
+ *
+ * New tags are written inside whatever transaction is open on the connection. If that transaction
+ * gets rolled back, rollback() needs to be called so we forget IDs that no longer exist. Until the
+ * first new tag, nothing else is expected to have been written in the transaction either (rows for
+ * ImageTags wait in the writer until the batch is flushed), so if the database is busy, creating it
+ * can start the transaction over and try again.
+ */
+public class TagDictionary {
+  private static final String QUERY_LOAD_TAGS = "SELECT id, name FROM Tags ORDER BY id";
+  private static final String QUERY_CREATE_TAG = "INSERT INTO Tags (pid, name) VALUES (0, ?)";
+
+  private final PreparedStatement createTag;
+  private final BusyRetry retry;
+  // Only the writing thread adds to this, but anyone can look things up in it.
+  private final Map<String, Integer> tagIds = new ConcurrentHashMap<>();
+  // Tags we've created since the last commit; these vanish if the transaction is rolled back.
+  private final List<String> uncommitted = new ArrayList<>();
+
+  /**
+   * Loads every tag in DigiKam's database into memory.
+   * @param conn an open connection to DigiKam's database
+   * @throws SQLException if the Tags table can't be read
+   */
+  public TagDictionary(Connection conn) throws SQLException {
+    this(conn, new BusyRetry(conn, new RunMetrics()));
+  }
+
+  /**
+   * Loads every tag in DigiKam's database into memory.
+   * @param conn an open connection to DigiKam's database
+   * @param retry how to wait out DigiKam when it has the database locked
+   * @throws SQLException if the Tags table can't be read
+   */
+  public TagDictionary(Connection conn, BusyRetry retry) throws SQLException {
+    this.retry = retry;
+    retry.run(() -> {
+      tagIds.clear();
+      try (Statement st = conn.createStatement();
+           ResultSet res = st.executeQuery(QUERY_LOAD_TAGS)) {
+        while (res.next()) {
+          // DigiKam only keeps names unique per parent tag. Looking a name up in SQL used to give us
+          // the oldest match, so keep the first ID we see.
+          tagIds.putIfAbsent(res.getString("name"), res.getInt("id"));
+        }
+      }
+      return null;
+    }, false);
+    createTag = conn.prepareStatement(QUERY_CREATE_TAG, Statement.RETURN_GENERATED_KEYS);
+  }
+
+  /**
+   * Returns DigiKam's ID for the tag named `tag`, creating the tag first if it doesn't exist yet.
+   * @param tag the tag to look for
+   * @return the unique ID DigiKam has assigned that tag, or -1 if it had to be created and that failed
+   */
+  public int resolve(String tag) {
+    Integer tagId = tagIds.get(tag);
+    if (tagId != null) {
+      return tagId;
+    }
+    return createNewTag(tag);
+  }
+
+  /**
+   * Returns DigiKam's ID for the tag named `tag`, without creating anything.
+   * @param tag the tag to look for
+   * @return the unique ID DigiKam has assigned that tag, or -1 if it doesn't exist
+   */
+  public int lookup(String tag) {
+    Integer tagId = tagIds.get(tag);
+    return tagId == null ? -1 : tagId;
+  }
+
+  /**
+   * Create a new tag in DigiKam's database and remember its ID.
+   * @param tag a String tag new to DigiKam's database
+   * @return the unique ID DigiKam assigned the newly added tag, or -1 if a SQL error occurred
+   */
+  private int createNewTag(String tag) {
+    // Tag id is an integer primary key, so if we don't specify it, it'll autoincrement; the driver
+    // hands that id back as a generated key.
+    try {
+      int tagId = retry.run(() -> {
+        createTag.setString(1, tag);
+        createTag.executeUpdate();
+        try (ResultSet keys = createTag.getGeneratedKeys()) {
+          return keys.next() ? keys.getInt(1) : -1;
+        }
+      }, uncommitted.isEmpty());
+      if (tagId == -1) {
+        System.out.println("Created tag " + tag + " but DigiKam didn't report an ID for it.");
+        return -1;
+      }
+      tagIds.put(tag, tagId);
+      uncommitted.add(tag);
+      return tagId;
+    } catch (SQLException throwables) {
+      System.out.println("Failed to create tag.");
+      throwables.printStackTrace();
+      return -1;
+    }
+  }
+
+  /**
+   * @return true if tags have been created since the last commit or rollback
+   */
+  public boolean hasUncommitted() {
+    return !uncommitted.isEmpty();
+  }
+
+  /**
+   * Call once the transaction new tags were written in has been committed.
+   */
+  public void commit() {
+    uncommitted.clear();
+  }
+
+  /**
+   * Call if the transaction new tags were written in has been rolled back; forgets their IDs so
+   * they'll be created again next time they're needed.
+   */
+  public void rollback() {
+    for (String tag : uncommitted) {
+      tagIds.remove(tag);
+    }
+    uncommitted.clear();
+  }
+
+  /**
+   * Releases the prepared statement.
+   */
+  public void close() {
+    try {
+      createTag.close();
+    } catch (SQLException throwables) {
+      throwables.printStackTrace();
+    }
+  }
+}
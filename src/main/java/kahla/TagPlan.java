@@ -0,0 +1,216 @@
+package kahla;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * What a run would do to DigiKam's database, worked out without writing anything: which tags would
+ * be created, how many image-tag links would be added, and how many are already there. With
+ * --face-regions, the same goes for face regions, plus how many tags would be marked as people.
+ * Counts are kept per directory and written out as JSON or CSV.
+ */
+public class TagPlan {
+  private final List<DirectoryPlan> directories = new ArrayList<>();
+  // Tags that don't exist in DigiKam yet, in the order a real run would create them. Each one gets
+  // a made-up negative ID so links to it can be told apart like any other link.
+  private final LinkedHashMap<String, Integer> newTags = new LinkedHashMap<>();
+  private long elapsedMillis;
+
+  /**
+   * Counts for one directory.
+   */
+  public static class DirectoryPlan {
+    private final String dir;
+    private final String iniPath;
+    private int imagesTagged;
+    private int imagesSkipped;
+    private int newTags;
+    private int newLinks;
+    private int existingLinks;
+    private int newRegions;
+    private int existingRegions;
+    private int newPeople;
+
+    DirectoryPlan(String dir, String iniPath) {
+      this.dir = dir;
+      this.iniPath = iniPath;
+    }
+
+    public void imageTagged() {
+      imagesTagged++;
+    }
+
+    public void imageSkipped() {
+      imagesSkipped++;
+    }
+
+    public void newLink() {
+      newLinks++;
+    }
+
+    public void existingLink() {
+      existingLinks++;
+    }
+
+    public void newRegion() {
+      newRegions++;
+    }
+
+    public void existingRegion() {
+      existingRegions++;
+    }
+
+    public void newPerson() {
+      newPeople++;
+    }
+  }
+
+  /**
+   * Starts counting for a new directory.
+   * @param dir the directory
+   * @param iniPath its picasa.ini
+   * @return the counts for that directory, to fill in
+   */
+  public DirectoryPlan startDirectory(String dir, String iniPath) {
+    DirectoryPlan plan = new DirectoryPlan(dir, iniPath);
+    directories.add(plan);
+    return plan;
+  }
+
+  /**
+   * Notes that a run would have to create the tag `tag`, on behalf of `dir`.
+   * @return a stand-in (negative) ID for the tag, the same every time it's asked for
+   */
+  public int newTag(DirectoryPlan dir, String tag) {
+    Integer id = newTags.get(tag);
+    if (id == null) {
+      id = -(newTags.size() + 1);
+      newTags.put(tag, id);
+      dir.newTags++;
+    }
+    return id;
+  }
+
+  public void setElapsedMillis(long elapsedMillis) {
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * @return a one-line summary for the console
+   */
+  public String summary() {
+    long links = 0;
+    long existing = 0;
+    long regions = 0;
+    long existingRegions = 0;
+    long people = 0;
+    for (DirectoryPlan d : directories) {
+      links += d.newLinks;
+      existing += d.existingLinks;
+      regions += d.newRegions;
+      existingRegions += d.existingRegions;
+      people += d.newPeople;
+    }
+    String summary = directories.size()+" directories: "+newTags.size()+" new tags, "+links+" new image tags, "
+            +existing+" image tags already present.";
+    if (regions + existingRegions + people > 0) {
+      summary += " "+regions+" new face regions, "+existingRegions+" already present, and "+people
+              +" tags newly marked as people.";
+    }
+    return summary;
+  }
+
+  /**
+   * Writes the plan to `path`, as CSV if the name ends in .csv and JSON otherwise.
+   * @param path where to write the report
+   * @throws IOException if the file can't be written
+   */
+  public void write(String path) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+      if (path.toLowerCase().endsWith(".csv")) {
+        writeCsv(out);
+      } else {
+        writeJson(out);
+      }
+    }
+  }
+
+  private void writeCsv(PrintWriter out) {
+    out.println("directory,ini,imagesTagged,imagesSkipped,newTags,newLinks,existingLinks,newRegions,"
+            +"existingRegions,newPeople");
+    for (DirectoryPlan d : directories) {
+      out.println(csv(d.dir)+","+csv(d.iniPath)+","+d.imagesTagged+","+d.imagesSkipped+","
+              +d.newTags+","+d.newLinks+","+d.existingLinks+","+d.newRegions+","+d.existingRegions+","
+              +d.newPeople);
+    }
+  }
+
+  private void writeJson(PrintWriter out) {
+    long tagged = 0;
+    long skipped = 0;
+    long links = 0;
+    long existing = 0;
+    long regions = 0;
+    long existingRegions = 0;
+    long people = 0;
+    out.println("{");
+    out.println("  \"directories\": [");
+    for (int i = 0; i < directories.size(); i++) {
+      DirectoryPlan d = directories.get(i);
+      tagged += d.imagesTagged;
+      skipped += d.imagesSkipped;
+      links += d.newLinks;
+      existing += d.existingLinks;
+      regions += d.newRegions;
+      existingRegions += d.existingRegions;
+      people += d.newPeople;
+      out.print("    {\"directory\": "+json(d.dir)+", \"ini\": "+json(d.iniPath)
+              +", \"imagesTagged\": "+d.imagesTagged+", \"imagesSkipped\": "+d.imagesSkipped
+              +", \"newTags\": "+d.newTags+", \"newLinks\": "+d.newLinks
+              +", \"existingLinks\": "+d.existingLinks+", \"newRegions\": "+d.newRegions
+              +", \"existingRegions\": "+d.existingRegions+", \"newPeople\": "+d.newPeople+"}");
+      out.println(i < directories.size() - 1 ? "," : "");
+    }
+    out.println("  ],");
+    out.print("  \"newTags\": [");
+    boolean first = true;
+    for (String tag : newTags.keySet()) {
+      out.print((first ? "" : ", ")+json(tag));
+      first = false;
+    }
+    out.println("],");
+    out.println("  \"totals\": {\"directories\": "+directories.size()+", \"imagesTagged\": "+tagged
+            +", \"imagesSkipped\": "+skipped+", \"newTags\": "+newTags.size()+", \"newLinks\": "+links
+            +", \"existingLinks\": "+existing+", \"newRegions\": "+regions+", \"existingRegions\": "
+            +existingRegions+", \"newPeople\": "+people+", \"elapsedMillis\": "+elapsedMillis+"}");
+    out.println("}");
+  }
+
+  private static String csv(String s) {
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+      return s;
+    }
+    return "\""+s.replace("\"", "\"\"")+"\"";
+  }
+
+  private static String json(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+}
@@ -0,0 +1,95 @@
+package kahla;
+
+import java.util.List;
+
+/**
+ * Somewhere tags go. DigikamSink (DigiKam's SQLite database) is the only one so far.
+ *
+ * A run opens the sink, writes to it a folder at a time from a single thread, and then finishes
+ * it. The questions the walk and the readers ask (accepts(), ignores(), isUnchanged()) can come
+ * from other threads, so they have to be safe to ask from anywhere once the sink is open.
+ */
+public interface TagSink {
+  /**
+   * How writing a folder went.
+   */
+  enum Status {
+    // Everything's been written (or queued to be, in a batch).
+    WRITTEN,
+    // Held on to, to be written all at once when the run finishes.
+    STAGED,
+    // The folder's tags were already there from an earlier run.
+    UNCHANGED,
+    // Couldn't be written; worth trying again later in the run.
+    FAILED
+  }
+
+  /**
+   * Gets ready to take tags. Says why (and returns false) if it can't.
+   * @param metrics where to record how long each step takes
+   * @return true if the sink is ready to write to
+   */
+  boolean open(RunMetrics metrics);
+
+  /**
+   * @param directory a folder, with single forward slashes
+   * @return true if there's somewhere to put tags from `directory`
+   */
+  boolean accepts(String directory);
+
+  /**
+   * @param directory a folder, with single forward slashes
+   * @return true if tags from `directory`, and everything under it, have nowhere to go, so there's
+   * no point looking inside it
+   */
+  boolean ignores(String directory);
+
+  /**
+   * @return true if this sink keeps track of which files it's already taken everything from, and
+   * so wants to know the size, modification time and a hash of each one
+   */
+  boolean tracksFiles();
+
+  /**
+   * @param path a file tags were read from
+   * @param size the file's size now
+   * @param modified the file's modification time now
+   * @return true if everything in the file, exactly as it is now, has already been written, so it
+   * doesn't need reading again
+   */
+  boolean isUnchanged(String path, long size, long modified);
+
+  /**
+   * Writes (or queues up) the tags read from one folder. Only ever called from one thread.
+   * @param directory the folder `tags` came from
+   * @param tags what was read there
+   * @param counts where to count what got done
+   * @return how it went
+   */
+  Status write(String directory, PicasaIni tags, DirectoryCounts counts);
+
+  /**
+   * Picks up anything that's changed underneath the sink since it was opened, like folders DigiKam
+   * has found since. Only needed by runs that stay open for a long time (--watch).
+   */
+  default void refresh() {
+  }
+
+  /**
+   * Writes out anything queued up so far.
+   * @return every folder whose writes have been undone since the last call, so they can be tried
+   * again
+   */
+  List<String> flush();
+
+  /**
+   * Writes out everything left and lets go of whatever the sink was writing to.
+   * @return true if everything was written cleanly
+   */
+  boolean finish();
+
+  /**
+   * Gives up on the run without finishing it, letting go of whatever the sink was writing to.
+   */
+  void abort();
+}
@@ -0,0 +1,75 @@
+package kahla;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Somewhere tags come from, a folder at a time. PicasaIniSource (the .picasa.ini files under a
+ * folder) is the only one so far.
+ *
+ * A run lists the folders once, on one thread, and reads them on however many threads it's been
+ * given, so read() has to be safe to call from several threads at once.
+ */
+public interface TagSource {
+  /**
+   * Lists the folders to import, in the order they should be written.
+   * @param sink where the tags are going; folders it has nowhere to put can be left out
+   * @return the folders, with single forward slashes
+   */
+  Iterator<String> directories(TagSink sink);
+
+  /**
+   * Counts what directories() will hand back. This runs alongside the real listing, just for the
+   * progress line, so it shouldn't report anything.
+   * @param sink where the tags are going
+   * @return how many folders there are to import
+   */
+  default long countDirectories(TagSink sink) {
+    Iterator<String> dirs = directories(sink);
+    long count = 0;
+    while (dirs.hasNext()) {
+      dirs.next();
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Reads the tags for one folder. Safe to call from any thread.
+   * @param directory one of the folders directories() handed back
+   * @param sink where the tags are going, asked whether it already has them
+   * @param metrics where to record how long reading takes
+   * @return the folder's tags, or null if it turns out not to have any
+   */
+  PicasaIni read(String directory, TagSink sink, RunMetrics metrics);
+
+  /**
+   * Finishes off what read() handed back, for anything that depends on the folders before it.
+   * Called on the thread that writes, one folder at a time, in the order directories() listed
+   * them, so threaded runs come out the same as ones without threads.
+   * @param ini what read() handed back for a folder; not null
+   * @param metrics where to count anything that couldn't be finished
+   * @return the folder's tags, ready to write
+   */
+  default PicasaIni resolve(PicasaIni ini, RunMetrics metrics) {
+    return ini;
+  }
+
+  /**
+   * Starts watching for folders whose tags change, for --watch.
+   * @param sink where the tags are going; folders it has nowhere to put don't need watching
+   * @return a watcher, or null if this source can't be watched
+   * @throws IOException if watching was possible but couldn't be set up
+   */
+  default IniWatcher watch(TagSink sink) throws IOException {
+    return null;
+  }
+
+  /**
+   * @return anything the user should know about what couldn't be read, for the end of the run, or
+   * null if there's nothing to say
+   */
+  default String summary() {
+    return null;
+  }
+}
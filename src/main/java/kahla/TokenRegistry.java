@@ -0,0 +1,260 @@
+package kahla;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every Picasa album and face token seen during a run, and the name each one stands for.
+ *
+ * picasa.ini only defines the albums and people used in that folder, and not always even those:
+ * a [Contacts2] block can be missing, or a person can have been named in a different folder.
+ * Looking tokens up here instead means a name learned anywhere in the run (or from Picasa's own
+ * contacts.xml and album database, see seed()) can be used everywhere. Each name is only made
+ * into a tag once, and every image with that tag shares the one string.
+ *
+ * Tokens nobody ever names are counted instead of turned into tags, so we can tell the user about
+ * them rather than tagging their photos 'pmeta/null'.
+ *
+ * A registry can sit on top of another one (the names seeded from one Picasa install, shared by
+ * every --manifest job that uses it). Names in the one underneath win, and everything learned
+ * while running, unnamed tokens included, stays in the one on top.
+ *
+ * Tokens are only looked up on the thread that writes, in walk order, so a run comes out the same
+ * however many threads read. Everything in here is thread-safe all the same, since the registry
+ * underneath is shared between jobs.
+ */
+public class TokenRegistry {
+  private static final String METATAG_AFFIX = "pmeta/";
+
+  // Where Picasa keeps its own copies, relative to its data folder (usually
+  // %LOCALAPPDATA%/Google/Picasa2).
+  private static final String CONTACTS_FILE = "contacts/contacts.xml";
+  private static final String ALBUM_TOKENS_FILE = "db3/albumdata_token.pmp";
+  private static final String ALBUM_NAMES_FILE = "db3/albumdata_name.pmp";
+
+  // Every .pmp file starts with this, and says what's in it at offset 4. 0 means strings.
+  private static final int PMP_MAGIC = 0x3fcccccd;
+  private static final int PMP_HEADER_SIZE = 20;
+  private static final int PMP_TYPE_STRING = 0;
+
+  // Token -> 'pmeta/name' tag.
+  private final Map<String, String> tags = new ConcurrentHashMap<>();
+  // Name -> 'pmeta/name' tag, so the same name is only ever one string however many tokens (or
+  // folders) it comes from.
+  private final Map<String, String> names = new ConcurrentHashMap<>();
+  // Tokens nothing defined -> how many times one was left off an image.
+  private final Map<String, AtomicInteger> unresolved = new ConcurrentHashMap<>();
+  // The registry this one sits on top of, or null.
+  private final TokenRegistry base;
+
+  public TokenRegistry() {
+    this(null);
+  }
+
+  /**
+   * @param base a registry to look tokens up in before this one; it's never added to
+   */
+  public TokenRegistry(TokenRegistry base) {
+    this.base = base;
+  }
+
+  /**
+   * Records that `token` stands for `name`. If the token already has a name (from an earlier
+   * folder, or from Picasa's own database) that one is kept.
+   * @param token an album or face token
+   * @param name the plaintext name it was defined with
+   */
+  public void define(String token, String name) {
+    if (base != null && base.resolve(token) != null) {
+      return;
+    }
+    if (!tags.containsKey(token)) {
+      tags.putIfAbsent(token, intern(name));
+    }
+  }
+
+  /**
+   * @param name an album or person's name
+   * @return the 'pmeta/' tag for `name`, the same String every time
+   */
+  public String intern(String name) {
+    if (base != null) {
+      String tag = base.names.get(name);
+      if (tag != null) {
+        return tag;
+      }
+    }
+    return names.computeIfAbsent(name, n -> METATAG_AFFIX+n);
+  }
+
+  /**
+   * @param token an album or face token
+   * @return the 'pmeta/' tag for `token`, or null if nothing has named it (yet)
+   */
+  public String resolve(String token) {
+    String tag = base != null ? base.resolve(token) : null;
+    return tag != null ? tag : tags.get(token);
+  }
+
+  /**
+   * Notes down that `token` had to be left off an image because nothing named it.
+   */
+  public void unresolved(String token) {
+    unresolved.computeIfAbsent(token, t -> new AtomicInteger()).incrementAndGet();
+  }
+
+  /**
+   * @return how many tokens have names
+   */
+  public int size() {
+    return tags.size()+(base != null ? base.size() : 0);
+  }
+
+  /**
+   * @return every token that was left off an image, and how many images it was left off. A token
+   * that turned up in one folder and only got named in a later one is in here too; those images
+   * get their tag on the next run.
+   */
+  public Map<String, AtomicInteger> getUnresolved() {
+    return unresolved;
+  }
+
+  /**
+   * Tells the user about any tokens that had to be left off, if there were any.
+   * @return a line for the end of the run, or null if every token was resolved
+   */
+  public String summary() {
+    if (unresolved.isEmpty()) {
+      return null;
+    }
+    int images = 0;
+    List<String> tokens = new ArrayList<>();
+    for (Map.Entry<String, AtomicInteger> e : unresolved.entrySet()) {
+      images += e.getValue().get();
+      if (tokens.size() < 10) {
+        tokens.add(e.getKey());
+      }
+    }
+    return unresolved.size()+" album/face tokens had no name anywhere Kahla looked, so "+images+" tags were " +
+            "left off instead of being written as 'pmeta/null'. Pointing --picasa-db at Picasa's data folder " +
+            "might help. Some of them: "+String.join(", ", tokens);
+  }
+
+  /**
+   * Learns every contact and album name Picasa has in its own data folder, where it keeps the
+   * names of people and albums even when no picasa.ini mentions them. Whatever's missing or can't
+   * be read is skipped.
+   * @param picasaDir Picasa's data folder (the one with contacts/ and db3/ in it)
+   * @return how many names were learned
+   */
+  public int seed(File picasaDir) {
+    int before = tags.size();
+    File contacts = new File(picasaDir, CONTACTS_FILE);
+    if (contacts.isFile()) {
+      try {
+        seedContacts(contacts);
+      } catch (IOException | SAXException | ParserConfigurationException e) {
+        System.out.println("Couldn't read Picasa's contacts from "+contacts+". Continuing without them.");
+        e.printStackTrace();
+      }
+    }
+    File albumTokens = new File(picasaDir, ALBUM_TOKENS_FILE);
+    File albumNames = new File(picasaDir, ALBUM_NAMES_FILE);
+    if (albumTokens.isFile() && albumNames.isFile()) {
+      try {
+        seedAlbums(albumTokens, albumNames);
+      } catch (IOException e) {
+        System.out.println("Couldn't read Picasa's albums from "+albumTokens.getParent()+". Continuing without them.");
+        e.printStackTrace();
+      }
+    }
+    return tags.size() - before;
+  }
+
+  /**
+   * Example input:
+   * <contacts>
+   *  <contact id="7765103530c632d3" name="debug-yoshi" display="yoshi" modified_time="..."/>
+   * </contacts>
+   * The id is the token that shows up in 'faces=' lines.
+   */
+  private void seedContacts(File contacts) throws IOException, SAXException, ParserConfigurationException {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    // It's a plain list; no reason to let it pull in anything else.
+    factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+    NodeList nodes = factory.newDocumentBuilder().parse(contacts).getElementsByTagName("contact");
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Element contact = (Element) nodes.item(i);
+      String name = contact.getAttribute("name");
+      if (name.isEmpty()) {
+        name = contact.getAttribute("display");
+      }
+      if (!contact.getAttribute("id").isEmpty() && !name.isEmpty()) {
+        define(contact.getAttribute("id"), name);
+      }
+    }
+  }
+
+  /**
+   * Picasa's album table is a set of .pmp files, one per column, each holding that column for
+   * every album in the same order. We only need the token and name columns.
+   */
+  private void seedAlbums(File tokenFile, File nameFile) throws IOException {
+    List<String> tokens = readPmpStrings(tokenFile);
+    List<String> albumNames = readPmpStrings(nameFile);
+    int n = Math.min(tokens.size(), albumNames.size());
+    for (int i = 0; i < n; i++) {
+      String token = tokens.get(i);
+      // Album tokens are stored as ']album:<token>'; picasa.ini only has the part after the colon.
+      if (token.startsWith("]")) {
+        token = token.substring(token.lastIndexOf(':') + 1);
+      }
+      // Same 'phantom' albums as in picasa.ini: no name, never used.
+      if (!token.isEmpty() && !albumNames.get(i).isEmpty()) {
+        define(token, albumNames.get(i));
+      }
+    }
+  }
+
+  /**
+   * Reads a .pmp column of strings: a 20 byte header (magic number, type, and how many entries
+   * there are, all little-endian) followed by that many null-terminated strings.
+   * @return the strings, in order; empty if the file isn't a string column
+   */
+  private static List<String> readPmpStrings(File f) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    List<String> strings = new ArrayList<>();
+    if (buf.remaining() < PMP_HEADER_SIZE || buf.getInt(0) != PMP_MAGIC
+            || buf.getShort(4) != PMP_TYPE_STRING) {
+      System.out.println(f+" doesn't look like a Picasa string table. Skipping it.");
+      return strings;
+    }
+    int count = buf.getInt(16);
+    byte[] bytes = buf.array();
+    int start = PMP_HEADER_SIZE;
+    // Same charset the ini files are read with.
+    Charset charset = Charset.defaultCharset();
+    for (int i = start; i < bytes.length && strings.size() < count; i++) {
+      if (bytes[i] == 0) {
+        strings.add(new String(bytes, start, i - start, charset));
+        start = i + 1;
+      }
+    }
+    return strings;
+  }
+}
@@ -0,0 +1,456 @@
+package kahla;
+
+import org.sqlite.SQLiteConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copies every tag DigiKam has for the images under a folder out into .xmp sidecar files next to
+ * the images, for --export-xmp. That way the tags are somewhere other than digikam4.db, including
+ * for file types DigiKam can't write metadata into.
+ *
+ * Everything comes out of the database in one query, read front to back: albums in path order,
+ * images in name order, tags in ID order, so each image's rows (and each album's images) arrive
+ * together. That order is the order of the indexes DigiKam already has, so SQLite never has to sort
+ * or buffer the result, however big the library is. The query runs on the calling thread, which
+ * cuts it into batches of images and hands them to a pool of writer threads. Only a few batches per
+ * writer are allowed to be waiting at once, so if the disk is slower than the database (it will
+ * be), the query waits for the writers and memory stays flat.
+ *
+ * Each sidecar is put together in memory and written in one go. Its first line carries a hash of
+ * everything after it; if the sidecar that's already there has the same hash, it's left alone, so
+ * running the export again only rewrites images whose tags have changed. That includes images
+ * whose tags have all gone since (or that only have DigiKam's internal ones): a sidecar Kahla wrote
+ * for them gets rewritten with no tags in it, and images that never had one don't get one. Sidecars
+ * Kahla didn't write (DigiKam's own, or another program's) are never overwritten.
+ */
+public class XmpExport {
+  private static final String JDBC_AFFIX = "jdbc:sqlite:";
+  private static final String DB_NAME = "digikam4.db";
+
+  // How many rows the driver should fetch at a time.
+  private static final int FETCH_SIZE = 1000;
+  // Images per batch handed to a writer; an album bigger than this gets split up.
+  private static final int IMAGES_PER_BATCH = 256;
+  // How many batches each writer thread can have waiting before the query stops for it.
+  private static final int BATCHES_PER_THREAD = 4;
+  // How much of an existing sidecar to read to find the hash in it.
+  private static final int HEADER_BYTES = 256;
+  private static final String TOOLKIT_PREFIX = "Kahla sha1=";
+  // DigiKam keeps color labels, picks and the like as tags under this one. They aren't anyone's tags.
+  private static final String INTERNAL_TAGS = "_Digikam_Internal_Tags_";
+
+  private static final String QUERY_LOAD_TAGS = "SELECT id, pid, name FROM Tags";
+  // The CROSS JOINs keep SQLite from reordering the joins, and the ORDER BY matches the indexes it
+  // walks in that order, so rows stream straight off the indexes with no sort. The LEFT JOINs
+  // (which SQLite never reorders either) keep images without any tags, with a null tag ID, so
+  // their old sidecars get emptied out too.
+  private static final String QUERY_STREAM_TAGS = "SELECT a.relativePath, i.name, t.id " +
+          "FROM AlbumRoots r CROSS JOIN Albums a ON a.albumRoot = r.id " +
+          "CROSS JOIN Images i ON i.album = a.id " +
+          "LEFT JOIN ImageTags it ON it.imageid = i.id " +
+          "LEFT JOIN Tags t ON t.id = it.tagid " +
+          "WHERE r.specificPath = ? AND (a.relativePath = ? OR (? AND substr(a.relativePath, 1, ?) = ?)) " +
+          "ORDER BY r.id, a.relativePath, i.name, it.tagid";
+
+  private static final String XMP_HEADER = "<?xpacket begin=\"\uFEFF\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n";
+
+  private final String dbDir;
+  private final String imageDir;
+  private final boolean recursive;
+  private final int threads;
+  private final RunMetrics metrics = new RunMetrics();
+
+  // Tag ID -> its full path ('parent/child'), or null for DigiKam's internal tags.
+  private final Map<Integer, String> tagPaths = new HashMap<>();
+  // Only the first failure gets printed in full; the rest are counted.
+  private final AtomicBoolean reportedFailure = new AtomicBoolean();
+
+  /**
+   * @param dbDir the folder digikam4.db is in, with single forward slashes
+   * @param imageDir the folder to export, with single forward slashes; it has to be an album
+   *                 DigiKam knows about
+   * @param recursive whether to export every album under `imageDir` too
+   * @param threads how many threads to write sidecars with
+   */
+  public XmpExport(String dbDir, String imageDir, boolean recursive, int threads) {
+    this.dbDir = dbDir;
+    this.imageDir = imageDir;
+    this.recursive = recursive;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * One image's sidecar, waiting to be written.
+   */
+  private static class Sidecar {
+    private final Path path;
+    private final int[] tagIds;
+
+    Sidecar(Path path, int[] tagIds) {
+      this.path = path;
+      this.tagIds = tagIds;
+    }
+  }
+
+  /**
+   * Runs the export, start to finish.
+   * @return everything counted along the way, or null if the database couldn't be read at all
+   */
+  public RunMetrics run() {
+    Connection conn = connect();
+    if (conn == null) {
+      return null;
+    }
+    ExecutorService writers = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "kahla-xmp");
+      t.setDaemon(true);
+      return t;
+    });
+    Semaphore slots = new Semaphore(threads * BATCHES_PER_THREAD);
+    try {
+      AlbumResolver albums = new AlbumResolver(conn);
+      String[] split = albums.split(imageDir);
+      if (split == null || albums.resolve(imageDir) == -1) {
+        System.out.println("DigiKam doesn't know about the folder "+imageDir+", so there's nothing to export.");
+        return null;
+      }
+      loadTags(conn);
+      // DigiKam's paths don't have the drive letter; the folder we were given does.
+      String drive = imageDir.contains(":") ? imageDir.substring(0, imageDir.indexOf(':') + 1) : "";
+      stream(conn, split[0], split[1], drive, writers, slots);
+    } catch (SQLException throwables) {
+      System.out.println("Failed trying to read tags out of the database. (Is DigiKam open?)");
+      throwables.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      System.out.println("Stopped exporting early.");
+    } finally {
+      writers.shutdown();
+      try {
+        writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        writers.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+      try {
+        conn.close();
+      } catch (SQLException throwables) {
+        throwables.printStackTrace();
+      }
+    }
+    return metrics;
+  }
+
+  /**
+   * @return a one-line summary of how the export went, for the console
+   */
+  public String summary() {
+    double seconds = metrics.elapsedNanos() / 1e9;
+    long written = metrics.get(RunMetrics.Counter.SIDECARS_WRITTEN);
+    long unchanged = metrics.get(RunMetrics.Counter.SIDECARS_UNCHANGED);
+    String summary = metrics.get(RunMetrics.Counter.DIRECTORIES)+" folders, "+written+" sidecars written, "
+            +unchanged+" unchanged ("+Math.round((written + unchanged) / Math.max(seconds, 0.001))
+            +" images/s) in "+String.format("%.1f", seconds)+"s.";
+    long foreign = metrics.get(RunMetrics.Counter.SIDECARS_FOREIGN);
+    if (foreign > 0) {
+      summary += " "+foreign+" images already had a sidecar Kahla didn't write, so they were left alone.";
+    }
+    long failed = metrics.get(RunMetrics.Counter.SIDECARS_FAILED);
+    if (failed > 0) {
+      summary += " "+failed+" sidecars couldn't be written; see the first error above.";
+    }
+    return summary;
+  }
+
+  /**
+   * Reads the whole Tags table and works out every tag's full path. It's one row per tag, not per
+   * image, so it's small whatever the size of the library.
+   */
+  private void loadTags(Connection conn) throws SQLException {
+    Map<Integer, Integer> parents = new HashMap<>();
+    Map<Integer, String> names = new HashMap<>();
+    try (Statement st = conn.createStatement();
+         ResultSet res = st.executeQuery(QUERY_LOAD_TAGS)) {
+      while (res.next()) {
+        parents.put(res.getInt(1), res.getInt(2));
+        names.put(res.getInt(1), res.getString(3));
+      }
+    }
+    for (Integer id : names.keySet()) {
+      tagPaths.put(id, path(id, parents, names));
+    }
+  }
+
+  /**
+   * @return 'grandparent/parent/tag' for tag `id`, or null if it's one of DigiKam's internal tags
+   */
+  private static String path(int id, Map<Integer, Integer> parents, Map<Integer, String> names) {
+    StringBuilder path = new StringBuilder();
+    // The depth check is just in case the table has a loop in it.
+    for (int tag = id, depth = 0; tag > 0 && names.containsKey(tag) && depth < names.size(); depth++) {
+      String name = names.get(tag);
+      if (name.equals(INTERNAL_TAGS)) {
+        return null;
+      }
+      path.insert(0, path.length() == 0 ? name : name+"/");
+      tag = parents.get(tag);
+    }
+    return path.toString();
+  }
+
+  /**
+   * Runs the one big query and hands its rows out to the writers, a batch of images at a time.
+   */
+  private void stream(Connection conn, String specificPath, String relativePath, String drive,
+                      ExecutorService writers, Semaphore slots) throws SQLException, InterruptedException {
+    String prefix = relativePath.equals("/") ? "/" : relativePath+"/";
+    try (PreparedStatement ps = conn.prepareStatement(QUERY_STREAM_TAGS, ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY)) {
+      ps.setFetchSize(FETCH_SIZE);
+      ps.setString(1, specificPath);
+      ps.setString(2, relativePath);
+      ps.setBoolean(3, recursive);
+      ps.setInt(4, prefix.length());
+      ps.setString(5, prefix);
+
+      List<Sidecar> batch = new ArrayList<>();
+      String album = null;
+      String albumDir = null;
+      String image = null;
+      int[] tagIds = new int[16];
+      int tagCount = 0;
+      try (ResultSet res = ps.executeQuery()) {
+        while (res.next()) {
+          String rowAlbum = res.getString(1);
+          String rowImage = res.getString(2);
+          boolean newAlbum = !rowAlbum.equals(album);
+          if (newAlbum || !rowImage.equals(image)) {
+            if (image != null) {
+              batch.add(new Sidecar(Paths.get(albumDir, image+".xmp"), Arrays.copyOf(tagIds, tagCount)));
+            }
+            // Keep each batch to one album, so each writer's working in one folder at a time.
+            if ((newAlbum && !batch.isEmpty()) || batch.size() == IMAGES_PER_BATCH) {
+              submit(batch, writers, slots);
+              batch = new ArrayList<>();
+            }
+            if (newAlbum) {
+              album = rowAlbum;
+              albumDir = drive+specificPath+(album.equals("/") ? "" : album);
+              metrics.count(RunMetrics.Counter.DIRECTORIES, 1);
+            }
+            image = rowImage;
+            tagCount = 0;
+          }
+          int tagId = res.getInt(3);
+          if (res.wasNull()) {
+            // No tags at all (or one that's gone from Tags).
+            continue;
+          }
+          if (tagCount == tagIds.length) {
+            tagIds = Arrays.copyOf(tagIds, tagCount * 2);
+          }
+          tagIds[tagCount++] = tagId;
+        }
+      }
+      if (image != null) {
+        batch.add(new Sidecar(Paths.get(albumDir, image+".xmp"), Arrays.copyOf(tagIds, tagCount)));
+        submit(batch, writers, slots);
+      }
+    }
+  }
+
+  /**
+   * Hands `batch` to a writer, first waiting for a free slot if they've all got enough to do.
+   */
+  private void submit(List<Sidecar> batch, ExecutorService writers, Semaphore slots) throws InterruptedException {
+    slots.acquire();
+    writers.execute(() -> {
+      try {
+        writeBatch(batch);
+      } finally {
+        slots.release();
+      }
+    });
+  }
+
+  /**
+   * Writes every sidecar in `batch` that needs writing. Runs on a writer thread.
+   */
+  private void writeBatch(List<Sidecar> batch) {
+    MessageDigest sha1;
+    try {
+      sha1 = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM has to have SHA-1.
+      throw new IllegalStateException(e);
+    }
+    StringBuilder body = new StringBuilder();
+    for (Sidecar sidecar : batch) {
+      long t = metrics.start();
+      List<String> tags = new ArrayList<>();
+      for (int tagId : sidecar.tagIds) {
+        String path = tagPaths.get(tagId);
+        if (path != null && !path.isEmpty()) {
+          tags.add(path);
+        }
+      }
+      tags.sort(null);
+      body.setLength(0);
+      appendBody(body, tags);
+      byte[] bodyBytes = body.toString().getBytes(StandardCharsets.UTF_8);
+      String hash = toHex(sha1.digest(bodyBytes));
+      try {
+        String existing = readHash(sidecar.path);
+        if (existing == null) {
+          if (!tags.isEmpty()) {
+            metrics.count(RunMetrics.Counter.SIDECARS_FOREIGN, 1);
+          }
+        } else if (existing.equals(hash)) {
+          metrics.count(RunMetrics.Counter.SIDECARS_UNCHANGED, 1);
+        } else if (!tags.isEmpty() || !existing.isEmpty()) {
+          // An image with no tags (or nothing but internal ones) only gets written if there's a
+          // sidecar of ours to take the old ones off of.
+          try (OutputStream out = Files.newOutputStream(sidecar.path)) {
+            out.write((XMP_HEADER+"<x:xmpmeta xmlns:x=\"adobe:ns:meta/\" x:xmptk=\""+TOOLKIT_PREFIX+hash+"\">\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.write(bodyBytes);
+          }
+          metrics.count(RunMetrics.Counter.SIDECARS_WRITTEN, 1);
+        }
+      } catch (IOException e) {
+        metrics.count(RunMetrics.Counter.SIDECARS_FAILED, 1);
+        if (reportedFailure.compareAndSet(false, true)) {
+          System.out.println("Couldn't write "+sidecar.path+". (Is the folder still there?)");
+          e.printStackTrace();
+        }
+      }
+      metrics.stop(RunMetrics.Phase.SIDECAR_WRITE, t);
+    }
+  }
+
+  /**
+   * Everything in the sidecar after the header: each tag as a plain keyword (dc:subject), and the
+   * full path the way DigiKam (digiKam:TagsList) and Lightroom (lr:hierarchicalSubject) read it.
+   */
+  private static void appendBody(StringBuilder out, List<String> tags) {
+    Set<String> keywords = new LinkedHashSet<>();
+    for (String tag : tags) {
+      keywords.add(tag.substring(tag.lastIndexOf('/') + 1));
+    }
+    out.append(" <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n");
+    out.append("  <rdf:Description rdf:about=\"\"\n");
+    out.append("    xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n");
+    out.append("    xmlns:digiKam=\"http://www.digikam.org/ns/1.0/\"\n");
+    out.append("    xmlns:lr=\"http://ns.adobe.com/lightroom/1.0/\">\n");
+    appendList(out, "dc:subject", "rdf:Bag", keywords, '/');
+    appendList(out, "digiKam:TagsList", "rdf:Seq", tags, '/');
+    appendList(out, "lr:hierarchicalSubject", "rdf:Bag", tags, '|');
+    out.append("  </rdf:Description>\n");
+    out.append(" </rdf:RDF>\n");
+    out.append("</x:xmpmeta>\n");
+    out.append("<?xpacket end=\"w\"?>\n");
+  }
+
+  private static void appendList(StringBuilder out, String property, String container, Iterable<String> items,
+                                 char separator) {
+    out.append("   <").append(property).append(">\n");
+    out.append("    <").append(container).append(">\n");
+    for (String item : items) {
+      out.append("     <rdf:li>");
+      for (int i = 0; i < item.length(); i++) {
+        char c = item.charAt(i);
+        if (c == '&') {
+          out.append("&amp;");
+        } else if (c == '<') {
+          out.append("&lt;");
+        } else if (c == '>') {
+          out.append("&gt;");
+        } else if (c == '/') {
+          out.append(separator);
+        } else {
+          out.append(c);
+        }
+      }
+      out.append("</rdf:li>\n");
+    }
+    out.append("    </").append(container).append(">\n");
+    out.append("   </").append(property).append(">\n");
+  }
+
+  /**
+   * Reads the hash out of the top of the sidecar at `path`.
+   * @return the hash, "" if there's no sidecar there yet, or null if there's one Kahla didn't write
+   */
+  private static String readHash(Path path) throws IOException {
+    byte[] header;
+    try (InputStream in = Files.newInputStream(path)) {
+      header = in.readNBytes(HEADER_BYTES);
+    } catch (NoSuchFileException e) {
+      return "";
+    }
+    String text = new String(header, StandardCharsets.UTF_8);
+    int start = text.indexOf(TOOLKIT_PREFIX);
+    if (start < 0) {
+      return null;
+    }
+    start += TOOLKIT_PREFIX.length();
+    int end = text.indexOf('"', start);
+    return end < 0 ? null : text.substring(start, end);
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Opens digikam4.db read-only; the export never writes to it.
+   * @return the connection, or null if it couldn't be opened
+   */
+  private Connection connect() {
+    try {
+      SQLiteConfig config = new SQLiteConfig();
+      config.setReadOnly(true);
+      BusyRetry.configure(config);
+      Connection conn = DriverManager.getConnection(JDBC_AFFIX+dbDir+"/"+DB_NAME, config.toProperties());
+      System.out.println("Established connection to DigiKam database.");
+      return conn;
+    } catch (SQLException throwables) {
+      throwables.printStackTrace();
+      System.out.println("Couldn't establish database connection.");
+      System.out.println("(Most likely, "+DB_NAME+" wasn't found in "+dbDir+".)");
+      return null;
+    }
+  }
+}